@@ -0,0 +1,110 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.PhotoInfo;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Fills a DB with a made up catalog of photos for the benchmarks. The same
+ * seed always gives the same catalog.
+ */
+public class BenchmarkCatalog {
+
+    static final String[] MODELS = {
+        "Canon EOS 5D Mark II", "Canon EOS 50D", "Canon PowerShot S95",
+        "NIKON D90", "NIKON D750", "iPhone 6", "iPhone 11 Pro", "Pixel 4a"
+    };
+
+    private BenchmarkCatalog() {
+    }
+
+    /**
+     * Gets the original path of the photo at a position in the catalog.
+     *
+     * @param i the position
+     * @return the original path
+     */
+    static String origPath(int i) {
+        return String.format("/mnt/card%d/DCIM/%03dCANON/IMG_%05d.JPG", i % 10, (i / 1000) % 1000, i);
+    }
+
+    /**
+     * Makes the photo at a position in the catalog.
+     *
+     * @param i the position
+     * @param rand where to get random bits from
+     * @return the photo
+     */
+    static PhotoInfo makePhoto(int i, Random rand) {
+        PhotoInfo info = new PhotoInfo();
+        info.setOrigPath(origPath(i));
+        LocalDateTime captured = LocalDateTime.of(2005, 1, 1, 0, 0).plusMinutes(rand.nextInt(15 * 365 * 24 * 60));
+        info.setFinalPath(String.format("/photos/%d/%02d/%02d/IMG_%05d.JPG",
+                captured.getYear(), captured.getMonthValue(), captured.getDayOfMonth(), i));
+        Map<String, String> tags = new HashMap<>();
+        String model = MODELS[rand.nextInt(MODELS.length)];
+        tags.put("Make", model.substring(0, model.indexOf(' ')));
+        tags.put("Model", model);
+        tags.put("Date/Time", String.format("%d:%02d:%02d %02d:%02d:00", captured.getYear(), captured.getMonthValue(),
+                captured.getDayOfMonth(), captured.getHour(), captured.getMinute()));
+        tags.put("Orientation", "Top, left side (Horizontal / normal)");
+        tags.put("X Resolution", "72 dots per inch");
+        tags.put("Y Resolution", "72 dots per inch");
+        info.setTagNames(tags);
+        byte[] md5 = new byte[16];
+        rand.nextBytes(md5);
+        info.setMd5(md5);
+        info.setFingerprint(PhotoInfo.makeFingerprint(1024 * 1024 + rand.nextInt(8 * 1024 * 1024), md5));
+        info.setCaptureTime(captured.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        return info;
+    }
+
+    /**
+     * Puts a catalog of photos into a DB.
+     *
+     * @param photoDB the DB
+     * @param n the number of photos
+     * @param seed the seed for the random bits in the photos
+     */
+    static void populate(PhotoDB photoDB, int n, long seed) {
+        Random rand = new Random(seed);
+        try (BatchWriter writer = photoDB.getBatchWriter(1000, Long.MAX_VALUE, BatchWriter.Durability.NO_SYNC)) {
+            for (int i = 0; i < n; i++) {
+                writer.put(makePhoto(i, rand));
+            }
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param dir the directory
+     */
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
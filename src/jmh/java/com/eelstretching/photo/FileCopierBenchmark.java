@@ -0,0 +1,118 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.ContentHash;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copies and hashes a file the way that a photo is copied into the library,
+ * and the way that files were copied before the {@link FileCopier}, with a
+ * digest stream and a heap buffer, to compare against. The source file is
+ * written once, so it will mostly come out of the page cache. Set <code>java.io.tmpdir</code> to put the files on the disk that you
+ * want to measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FileCopierBenchmark {
+
+    @Param({"100", "4096", "204800"})
+    public int sizeKB;
+
+    @Param({"md5", "sha256", "murmur3"})
+    public String hash;
+
+    private Path dir;
+
+    private Path src;
+
+    private Path dst;
+
+    private FileCopier copier;
+
+    private MessageDigest md5;
+
+    private MessageDigest digest;
+
+    private final byte[] buffer = new byte[10 * 1024 * 1024];
+
+    @Setup
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        dir = Files.createTempDirectory("copy-bench");
+        src = dir.resolve("src.bin");
+        dst = dir.resolve("dst.bin");
+        Random rand = new Random(42);
+        byte[] block = new byte[1024 * 1024];
+        long size = sizeKB * 1024L;
+        try (OutputStream os = Files.newOutputStream(src)) {
+            for (long written = 0; written < size; written += block.length) {
+                rand.nextBytes(block);
+                os.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        copier = new FileCopier();
+        md5 = MessageDigest.getInstance("MD5");
+        digest = FileCopier.newDigest(ContentHash.forId(hash));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkCatalog.deleteTree(dir);
+    }
+
+    @Benchmark
+    public byte[] copyAndHash() throws IOException {
+        digest.reset();
+        copier.copy(src, dst, digest);
+        return digest.digest();
+    }
+
+    @Benchmark
+    public byte[] streamCopyAndHash() throws IOException {
+        digest.reset();
+        try (InputStream is = new DigestInputStream(Files.newInputStream(src), digest);
+                OutputStream os = Files.newOutputStream(dst)) {
+            int n;
+            while ((n = is.read(buffer)) >= 0) {
+                os.write(buffer, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    @Benchmark
+    public byte[] hashOnly() throws IOException {
+        digest.reset();
+        copier.hash(src, digest);
+        return digest.digest();
+    }
+
+    @Benchmark
+    public long fingerprint() throws IOException {
+        md5.reset();
+        return copier.hashEnds(src, PhotoVisitor.FINGERPRINT_BYTES, md5);
+    }
+}
@@ -0,0 +1,98 @@
+package com.eelstretching.photo;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.metadata.Metadata;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads the metadata from a sample file of each format that we collect. The
+ * samples come from a directory given with <code>-p sampleDir=...</code>; the
+ * first file in it with the right extension is used. Without a sample
+ * directory, synthetic samples are made with {@link TreeGenerator}, which can't
+ * make HEIC files, so HEIC is left out of the default formats. To time it, use
+ * <code>-p format=jpg,heic,mov,avi -p sampleDir=...</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetadataBenchmark {
+
+    @Param({"jpg", "mov", "avi"})
+    public String format;
+
+    @Param({""})
+    public String sampleDir;
+
+    private File sample;
+
+    private Path generated;
+
+    @Setup
+    public void setup() throws IOException {
+        Path dir;
+        if (sampleDir.isEmpty()) {
+            TreeGenerator.Format f;
+            try {
+                f = TreeGenerator.Format.valueOf(format.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalStateException(String.format("Can't generate a %s sample, set sampleDir to a directory of sample files", format));
+            }
+            generated = Files.createTempDirectory("samples");
+            TreeGenerator generator = new TreeGenerator(42);
+            generator.setFormatWeights(Collections.singletonMap(f, 1));
+            generator.setDupRatio(0);
+            generator.setNearDupRatio(0);
+            generator.setCollisionRatio(0);
+            generator.generate(generated, 1);
+            dir = generated;
+        } else {
+            dir = Paths.get(sampleDir);
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            Optional<Path> found = files
+                    .filter(f -> f.getFileName().toString().toLowerCase(Locale.ROOT).endsWith("." + format))
+                    .findFirst();
+            if (!found.isPresent()) {
+                throw new IllegalStateException(String.format("No %s sample in %s", format, dir));
+            }
+            sample = found.get().toFile();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (generated != null) {
+            BenchmarkCatalog.deleteTree(generated);
+        }
+    }
+
+    @Benchmark
+    public Metadata readMetadata() throws IOException, ImageProcessingException {
+        return ImageMetadataReader.readMetadata(sample);
+    }
+}
@@ -0,0 +1,69 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.PhotoInfo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Puts and gets single photos in a DB in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PhotoDBBenchmark {
+
+    @Param({"100000"})
+    public int catalogSize;
+
+    private Path dir;
+
+    private PhotoDB photoDB;
+
+    private Random rand;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("photodb-bench");
+        photoDB = new PhotoDB(dir, dir);
+        BenchmarkCatalog.populate(photoDB, catalogSize, 42);
+        rand = new Random(17);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        photoDB.close();
+        BenchmarkCatalog.deleteTree(dir);
+    }
+
+    @Benchmark
+    public PhotoInfo get() {
+        return photoDB.photoByOrigPath.get(BenchmarkCatalog.origPath(rand.nextInt(catalogSize)));
+    }
+
+    /**
+     * Replaces a photo in its own transaction, which updates the secondary
+     * indexes and the tag index.
+     */
+    @Benchmark
+    public void put() {
+        photoDB.put(null, BenchmarkCatalog.makePhoto(rand.nextInt(catalogSize), rand));
+    }
+}
@@ -0,0 +1,81 @@
+package com.eelstretching.photo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs path and tag queries over a generated catalog, both ones that can use
+ * a key range and ones that have to scan everything.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class QueryBenchmark {
+
+    @Param({"100000"})
+    public int catalogSize;
+
+    @Param({"1", "4"})
+    public int scanThreads;
+
+    private Path dir;
+
+    private PhotoDB photoDB;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("query-bench");
+        photoDB = new PhotoDB(dir, dir);
+        BenchmarkCatalog.populate(photoDB, catalogSize, 42);
+        photoDB.setScanThreads(scanThreads);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        photoDB.close();
+        BenchmarkCatalog.deleteTree(dir);
+    }
+
+    private static Pattern pattern(String regex) {
+        return Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    }
+
+    @Benchmark
+    public PhotoList matchPathPrefix() {
+        return photoDB.matchPath(Collections.singletonList(pattern("/mnt/card3/DCIM/01.*")));
+    }
+
+    @Benchmark
+    public PhotoList matchPathScan() {
+        return photoDB.matchPath(Collections.singletonList(pattern(".*/IMG_0\\d*7\\.JPG")));
+    }
+
+    @Benchmark
+    public PhotoList matchTagPrefix() {
+        return photoDB.matchTag("Model", Collections.singletonList(pattern("Canon EOS.*")));
+    }
+
+    @Benchmark
+    public PhotoList matchTagScan() {
+        return photoDB.matchTag("Model", Collections.singletonList(pattern(".*D\\d+")));
+    }
+}
@@ -0,0 +1,290 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.PhotoInfo;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.Transaction;
+import com.sleepycat.je.TransactionConfig;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Writes photos to the DB in batches, so that we pay for a commit every few
+ * hundred photos rather than for every photo. A batch is committed when it
+ * has enough photos in it or when it has been open long enough, whichever
+ * comes first. Whatever is left is committed when the writer is closed.
+ *
+ * <p>
+ * Photos written by an open batch are locked until the batch commits, so
+ * anything that needs to look at them before then should read uncommitted
+ * data.
+ *
+ * <p>
+ * If putting a photo fails, the batch is put again without it and the photo
+ * is tried on its own, so that one bad photo doesn't lose the photos that
+ * were put before it.
+ *
+ * <p>
+ * When the DB is being bulk loaded, there are no transactions. Photos are
+ * put as they come, and the store is synced now and then so that an
+ * interrupted load doesn't lose everything.
+ *
+ * <p>
+ * A batch writer should only be used by one thread at a time.
+ */
+public class BatchWriter implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(BatchWriter.class.getName());
+
+    /**
+     * How hard we try to make sure a committed batch survives a crash.
+     */
+    public enum Durability {
+        /**
+         * Write and sync the log on every commit.
+         */
+        SYNC(com.sleepycat.je.Durability.COMMIT_SYNC),
+        /**
+         * Write the log on every commit, but leave syncing it to the OS. A
+         * batch will survive the process crashing but not the machine.
+         */
+        WRITE_NO_SYNC(com.sleepycat.je.Durability.COMMIT_WRITE_NO_SYNC),
+        /**
+         * Don't write the log on commit. The log is synced periodically, and
+         * anything since the last sync can be lost if the process crashes.
+         */
+        NO_SYNC(com.sleepycat.je.Durability.COMMIT_NO_SYNC);
+
+        private final com.sleepycat.je.Durability jeDurability;
+
+        Durability(com.sleepycat.je.Durability jeDurability) {
+            this.jeDurability = jeDurability;
+        }
+    }
+
+    /**
+     * How often to sync the environment when commits don't sync.
+     */
+    private static final long SYNC_MILLIS = 60 * 1000;
+
+    /**
+     * How often to sync the store when bulk loading.
+     */
+    private static final long BULK_SYNC_MILLIS = 10 * 60 * 1000;
+
+    private final PhotoDB photoDB;
+
+    private final Environment env;
+
+    private final int batchSize;
+
+    private final long batchMillis;
+
+    private final Durability durability;
+
+    private final TransactionConfig txnConfig;
+
+    private final boolean transactional;
+
+    private Transaction txn;
+
+    /**
+     * The photos in the current batch, so that they can be put again if the
+     * batch fails.
+     */
+    private final List<PhotoInfo> batch = new ArrayList<>();
+
+    private long batchStart;
+
+    private long lastSync;
+
+    private int nCommits;
+
+    /**
+     * Creates a batch writer.
+     *
+     * @param photoDB the DB to write to
+     * @param batchSize the most photos to put in a batch
+     * @param batchMillis the longest to keep a batch open, in milliseconds
+     * @param durability how durable commits should be
+     */
+    public BatchWriter(PhotoDB photoDB, int batchSize, long batchMillis, Durability durability) {
+        this.photoDB = photoDB;
+        this.env = photoDB.env;
+        this.batchSize = batchSize;
+        this.batchMillis = batchMillis;
+        this.durability = durability;
+        txnConfig = new TransactionConfig();
+        txnConfig.setDurability(durability.jeDurability);
+        transactional = !photoDB.isBulkLoad();
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Puts a photo into the current batch, starting a new batch if there isn't
+     * one, and committing the batch if it's full or old enough.
+     *
+     * @param info the photo to put
+     * @return true if the photo was put, false if it couldn't be and was
+     * skipped
+     */
+    public boolean put(PhotoInfo info) {
+        if (!transactional) {
+            photoDB.put(null, info);
+            if (System.currentTimeMillis() - lastSync >= BULK_SYNC_MILLIS) {
+                photoDB.syncBulkLoad();
+                lastSync = System.currentTimeMillis();
+            }
+            return true;
+        }
+        if (txn == null) {
+            txn = env.beginTransaction(null, txnConfig);
+            batchStart = System.currentTimeMillis();
+        }
+        try {
+            photoDB.put(txn, info);
+        } catch (RuntimeException ex) {
+            logger.warning(String.format("Error putting %s: %s", info.getOrigPath(), ex));
+            //
+            // The failure may have spoiled the transaction, so start again.
+            putAgain(abort());
+            if (putAlone(Collections.singletonList(info))) {
+                return true;
+            }
+            logger.severe(String.format("Skipping %s, which can't be put in the DB", info.getOrigPath()));
+            return false;
+        }
+        batch.add(info);
+        if (batch.size() >= batchSize) {
+            commit();
+        } else {
+            maybeCommit();
+        }
+        return true;
+    }
+
+    /**
+     * Commits the current batch if it has been open long enough. Callers that
+     * might go a while between puts should call this now and then so that a
+     * batch isn't left open.
+     */
+    public void maybeCommit() {
+        if (txn != null && System.currentTimeMillis() - batchStart >= batchMillis) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits the current batch, if there is one.
+     */
+    public void commit() {
+        if (txn == null) {
+            return;
+        }
+        try {
+            txn.commit();
+        } catch (RuntimeException ex) {
+            logger.warning(String.format("Error committing batch: %s", ex));
+            putAgain(abort());
+            return;
+        }
+        txn = null;
+        batch.clear();
+        nCommits++;
+        if (durability == Durability.NO_SYNC && System.currentTimeMillis() - lastSync >= SYNC_MILLIS) {
+            sync();
+        }
+    }
+
+    /**
+     * Aborts the current batch.
+     *
+     * @return the photos that were in it
+     */
+    private List<PhotoInfo> abort() {
+        logger.warning(String.format("Aborting batch of %,d photos", batch.size()));
+        List<PhotoInfo> aborted = new ArrayList<>(batch);
+        try {
+            txn.abort();
+        } finally {
+            txn = null;
+            batch.clear();
+        }
+        return aborted;
+    }
+
+    /**
+     * Puts the photos from an aborted batch again. If they can't all be put
+     * together, then they're put one at a time, so that we only lose the
+     * ones that can't be put at all.
+     */
+    private void putAgain(List<PhotoInfo> infos) {
+        if (putAlone(infos)) {
+            return;
+        }
+        for (PhotoInfo info : infos) {
+            if (!putAlone(Collections.singletonList(info))) {
+                logger.severe(String.format("Lost %s, which can't be put in the DB", info.getOrigPath()));
+            }
+        }
+    }
+
+    /**
+     * Puts photos in a transaction of their own and commits it.
+     *
+     * @return true if they were put, false if nothing was
+     */
+    private boolean putAlone(List<PhotoInfo> infos) {
+        if (infos.isEmpty()) {
+            return true;
+        }
+        Transaction t = env.beginTransaction(null, txnConfig);
+        try {
+            for (PhotoInfo info : infos) {
+                photoDB.put(t, info);
+            }
+            t.commit();
+        } catch (RuntimeException ex) {
+            logger.warning(String.format("Error putting %,d photos: %s", infos.size(), ex));
+            t.abort();
+            return false;
+        }
+        nCommits++;
+        return true;
+    }
+
+    private void sync() {
+        env.sync();
+        lastSync = System.currentTimeMillis();
+    }
+
+    public int getCommitCount() {
+        return nCommits;
+    }
+
+    /**
+     * Commits the current batch and makes sure that everything that this
+     * writer has committed is on disk.
+     */
+    @Override
+    public void close() {
+        commit();
+        if (!transactional) {
+            //
+            // The store is synced when the load finishes.
+            return;
+        }
+        switch (durability) {
+            case WRITE_NO_SYNC:
+                env.flushLog(true);
+                break;
+            case NO_SYNC:
+                sync();
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.eelstretching.photo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings, so that we can tell that a string is definitely
+ * not in a set without looking in the DB. Strings are hashed with 128 bit
+ * MurmurHash3, and the two halves of the hash are combined to pick each bit.
+ *
+ * <p>
+ * This is safe to use from multiple threads.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    private final long nBits;
+
+    private final int nHashes;
+
+    private final AtomicLong added = new AtomicLong();
+
+    private final ThreadLocal<Murmur3Digest> digest = ThreadLocal.withInitial(Murmur3Digest::new);
+
+    /**
+     * Creates a filter that's big enough for a number of strings.
+     *
+     * @param expected the number of strings that we expect to add
+     * @param fpp the false positive rate that we want when that many strings
+     * have been added
+     */
+    public BloomFilter(long expected, double fpp) {
+        long n = Math.max(1, expected);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (m + 63) / 64));
+        bits = new AtomicLongArray(words);
+        nBits = words * 64L;
+        nHashes = (int) Math.max(1, Math.round((double) nBits / n * Math.log(2)));
+    }
+
+    /**
+     * Adds a string to the filter.
+     *
+     * @param s the string
+     */
+    public void add(String s) {
+        long[] h = hash(s);
+        for (int i = 0; i < nHashes; i++) {
+            long bit = index(h, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old = bits.get(word);
+            while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+                old = bits.get(word);
+            }
+        }
+        added.incrementAndGet();
+    }
+
+    /**
+     * Checks whether a string might have been added to the filter.
+     *
+     * @param s the string
+     * @return false if the string was definitely not added
+     */
+    public boolean mightContain(String s) {
+        long[] h = hash(s);
+        for (int i = 0; i < nHashes; i++) {
+            long bit = index(h, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long[] hash(String s) {
+        byte[] d = digest.get().digest(s.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer b = ByteBuffer.wrap(d).order(ByteOrder.LITTLE_ENDIAN);
+        return new long[]{b.getLong(0), b.getLong(8)};
+    }
+
+    private long index(long[] h, int i) {
+        return Long.remainderUnsigned(h[0] + i * h[1], nBits);
+    }
+
+    /**
+     * Gets how many strings have been added.
+     *
+     * @return the number of strings
+     */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /**
+     * Gets the memory used by the filter's bits.
+     *
+     * @return the number of bytes
+     */
+    public long getMemoryBytes() {
+        return nBits / 8;
+    }
+
+    /**
+     * Estimates the false positive rate from how many of the bits are set.
+     *
+     * @return the probability that a string that wasn't added is reported
+     * as one that might have been
+     */
+    public double getExpectedFpp() {
+        long set = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            set += Long.bitCount(bits.get(i));
+        }
+        return Math.pow((double) set / nBits, nHashes);
+    }
+}
@@ -0,0 +1,161 @@
+package com.eelstretching.photo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.logging.Logger;
+
+/**
+ * Marks a DB as being bulk loaded, with a file in the DB directory that's
+ * locked for as long as the load runs. While it's locked, nothing else can
+ * open the DB. If the file is there but not locked, then a load was
+ * interrupted, and anything stored since its last sync is missing from the
+ * DB, even though the files may have been copied into the library. Such a DB
+ * isn't opened until it's explicitly recovered, which accepts the DB as it
+ * is. Collecting again after that picks up the copies that the load left in
+ * the library, rather than copying the files a second time.
+ */
+class BulkLoadLock implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(BulkLoadLock.class.getName());
+
+    /**
+     * The name of the lock file.
+     */
+    public static final String LOCK_FILE = "bulk-load.lck";
+
+    private final Path lockPath;
+
+    private final FileChannel channel;
+
+    private final FileLock lock;
+
+    private BulkLoadLock(Path lockPath, FileChannel channel, FileLock lock) {
+        this.lockPath = lockPath;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Locks a DB for a bulk load.
+     *
+     * @param dbPath the DB directory
+     * @return the lock, which must be closed when the load is finished
+     * @throws IllegalStateException if the DB is already being bulk loaded
+     * @throws IOException if the lock file can't be written
+     */
+    public static BulkLoadLock acquire(Path dbPath) throws IOException {
+        Path lockPath = dbPath.resolve(LOCK_FILE);
+        boolean existed = Files.exists(lockPath);
+        FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = tryLock(channel);
+        if (lock == null) {
+            channel.close();
+            throw new IllegalStateException(String.format("%s is being bulk loaded by another process", dbPath));
+        }
+        if (existed) {
+            warnInterrupted(dbPath);
+        }
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(String.format("Bulk load by %s started %s%n",
+                ManagementFactory.getRuntimeMXBean().getName(), new Date()).getBytes(StandardCharsets.UTF_8)));
+        channel.force(true);
+        return new BulkLoadLock(lockPath, channel, lock);
+    }
+
+    /**
+     * Checks that a DB isn't being bulk loaded, and that a bulk load of it
+     * wasn't interrupted, before opening it as usual.
+     *
+     * @param dbPath the DB directory
+     * @throws IllegalStateException if the DB is being bulk loaded, or if a
+     * bulk load was interrupted and the DB hasn't been recovered
+     * @throws IOException if the lock file can't be read
+     */
+    public static void check(Path dbPath) throws IOException {
+        Path lockPath = dbPath.resolve(LOCK_FILE);
+        if (!Files.exists(lockPath)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.WRITE)) {
+            FileLock lock = tryLock(channel);
+            if (lock == null) {
+                throw new IllegalStateException(String.format("%s is being bulk loaded, try again when the load is finished", dbPath));
+            }
+            lock.release();
+        }
+        throw new IllegalStateException(String.format("A bulk load of %s was interrupted, so photos copied into "
+                + "the library after its last sync may be missing from the DB. Run PhotoDB with \"recover\" to use the DB "
+                + "as it is, and collect again to pick up the rest", dbPath));
+    }
+
+    /**
+     * Recovers a DB whose bulk load was interrupted, by removing the lock
+     * file, so that the DB can be opened as it is.
+     *
+     * @param dbPath the DB directory
+     * @return true if there was an interrupted load to recover from
+     * @throws IllegalStateException if the DB is being bulk loaded
+     * @throws IOException if the lock file can't be removed
+     */
+    public static boolean recover(Path dbPath) throws IOException {
+        Path lockPath = dbPath.resolve(LOCK_FILE);
+        if (!Files.exists(lockPath)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.WRITE)) {
+            FileLock lock = tryLock(channel);
+            if (lock == null) {
+                throw new IllegalStateException(String.format("%s is being bulk loaded, try again when the load is finished", dbPath));
+            }
+            warnInterrupted(dbPath);
+            Files.delete(lockPath);
+            lock.release();
+        }
+        return true;
+    }
+
+    /**
+     * Tries to lock the file without waiting.
+     *
+     * @return the lock, or <code>null</code> if someone else has it
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            //
+            // This process has it.
+            return null;
+        }
+    }
+
+    private static void warnInterrupted(Path dbPath) {
+        logger.warning(String.format("A bulk load of %s was interrupted. Photos copied into the library "
+                + "after its last sync may be missing from the DB", dbPath));
+    }
+
+    /**
+     * Removes the lock file and releases the lock.
+     *
+     * @throws IOException if the lock file can't be removed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            Files.deleteIfExists(lockPath);
+            lock.release();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.IngestMetrics.Stage;
+import com.eelstretching.photo.persist.PhotoInfo;
+import com.sleepycat.je.LockMode;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A plan for collecting photos, written by a {@link CollectPlanner}. The plan
+ * is a gzipped, tab separated file with a line for each photo file that was
+ * found: what to do with it, its size and modification time, the directory in
+ * the library that it's expected to go to, and its path.
+ *
+ * <p>
+ * Executing a plan collects the files that it says to copy, sorted by path
+ * so that files in the same directory are stat'ed together, and then handed
+ * to the collector by device and inode, whatever order the walk found them
+ * in. Before a file is collected, it is checked against the DB, and files
+ * whose current state is already there are skipped. A file that was copied
+ * into the library but not stored in the DB before an execution stopped is
+ * picked up again by the collector rather than copied twice. This makes it
+ * safe to stop an execution at any point and run the plan again to finish it.
+ *
+ * <p>
+ * The files are stat'ed and handed over a chunk at a time, so that we only
+ * hold the attributes of one chunk of the plan at once.
+ */
+public class CollectPlan {
+
+    private static final Logger logger = Logger.getLogger(CollectPlan.class.getName());
+
+    /**
+     * The first thing in a plan file.
+     */
+    static final String HEADER = "# PhotoCollector plan v1";
+
+    /**
+     * How many files to stat and hand over at once.
+     */
+    private static final int CHUNK_SIZE = 10000;
+
+    /**
+     * What to do with a file.
+     */
+    public enum Action {
+        /**
+         * The file isn't in the DB.
+         */
+        COPY,
+        /**
+         * The file is in the DB, but it has changed since it was collected.
+         */
+        RECOPY,
+        /**
+         * The file is in the DB and hasn't changed.
+         */
+        SKIP_UNCHANGED,
+        /**
+         * The file couldn't be read.
+         */
+        SKIP_UNREADABLE;
+
+        public boolean isCopy() {
+            return this == COPY || this == RECOPY;
+        }
+    }
+
+    /**
+     * A line of a plan.
+     */
+    public static class Entry {
+
+        final Action action;
+
+        final long size;
+
+        final long modified;
+
+        final String bucket;
+
+        final String path;
+
+        Entry(Action action, long size, long modified, String bucket, String path) {
+            this.action = action;
+            this.size = size;
+            this.modified = modified;
+            this.bucket = bucket;
+            this.path = path;
+        }
+
+        String format() {
+            return String.format("%s\t%d\t%d\t%s\t%s", action, size, modified, bucket, escape(path));
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split("\t", 5);
+            if (fields.length < 5) {
+                throw new IllegalArgumentException("Bad plan line: " + line);
+            }
+            return new Entry(Action.valueOf(fields[0]),
+                    Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]),
+                    fields[3],
+                    unescape(fields[4]));
+        }
+    }
+
+    private final Path planFile;
+
+    private final List<Entry> entries;
+
+    private CollectPlan(Path planFile, List<Entry> entries) {
+        this.planFile = planFile;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the entries from a plan file that say to copy a file.
+     *
+     * @param planFile the plan to read
+     * @return the plan
+     * @throws IOException if there is an error reading the plan, or if the file
+     * isn't a plan.
+     */
+    public static CollectPlan read(Path planFile) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(planFile), 64 * 1024), StandardCharsets.UTF_8))) {
+            String line = r.readLine();
+            if (line == null || !line.startsWith(HEADER)) {
+                throw new IOException(String.format("%s is not a collection plan", planFile));
+            }
+            while ((line = r.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    Entry e = Entry.parse(line);
+                    if (e.action.isCopy()) {
+                        entries.add(e);
+                    }
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(String.format("Error reading %s: %s", planFile, ex.getMessage()));
+                }
+            }
+        }
+        return new CollectPlan(planFile, entries);
+    }
+
+    /**
+     * Gets the number of files that the plan says to copy.
+     *
+     * @return the number of files
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of bytes that the plan says to copy.
+     *
+     * @return the number of bytes
+     */
+    public long getBytes() {
+        long total = 0;
+        for (Entry e : entries) {
+            total += e.size;
+        }
+        return total;
+    }
+
+    /**
+     * Collects the files in the plan that haven't been collected yet. The
+     * visitor must be closed afterwards to store the last of them.
+     *
+     * @param photoDB the DB to check files against
+     * @param visitor the visitor to collect files with
+     * @return a report on what was done
+     * @throws IOException if there is an error handing a file to the visitor
+     */
+    public String execute(PhotoDB photoDB, PhotoVisitor visitor) throws IOException {
+        IngestMetrics metrics = visitor.getMetrics();
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(e -> e.path));
+        List<Pending> todo = new ArrayList<>();
+        int nHanded = 0;
+        int nDone = 0;
+        int nVanished = 0;
+        for (int from = 0; from < sorted.size(); from += CHUNK_SIZE) {
+            int to = Math.min(sorted.size(), from + CHUNK_SIZE);
+            todo.clear();
+            int[] counts = find(photoDB, metrics, sorted.subList(from, to), todo);
+            nDone += counts[0];
+            nVanished += counts[1];
+
+            //
+            // Hand the files over device by device, in inode order, which is
+            // roughly how they're laid out on disk.
+            todo.sort(FileKeys.diskOrder(p -> p.attrs, p -> p.file.toString()));
+            metrics.filesFound(todo.size());
+            metrics.setWalkFinished(to == sorted.size());
+            for (Pending p : todo) {
+                visitor.handleFile(p.file, p.attrs, p.previous);
+            }
+            nHanded += todo.size();
+        }
+        metrics.setWalkFinished(true);
+        logger.info(String.format("%s: %,d files to copy, %,d already done, %,d gone",
+                planFile, nHanded, nDone, nVanished));
+        return String.format("Executed %s: handed %,d files to the collector, %,d were already done, %,d were gone",
+                planFile, nHanded, nDone, nVanished);
+    }
+
+    /**
+     * Finds the files in a chunk of the plan that still need to be collected.
+     *
+     * @param chunk the entries to check
+     * @param todo where to put the files that need to be collected
+     * @return the number of files that were already done and the number that
+     * were gone
+     */
+    private int[] find(PhotoDB photoDB, IngestMetrics metrics, List<Entry> chunk, List<Pending> todo) {
+        int nDone = 0;
+        int nVanished = 0;
+        for (Entry e : chunk) {
+            Path file = Paths.get(e.path);
+            long start = IngestMetrics.start();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException ex) {
+                nVanished++;
+                continue;
+            } catch (IOException ex) {
+                logger.warning(String.format("Unable to read attributes of %s: %s", file, ex));
+                nVanished++;
+                continue;
+            } finally {
+                metrics.record(Stage.WALK, start);
+            }
+            start = IngestMetrics.start();
+            PhotoInfo previous = photoDB.photoByOrigPath.get(null, e.path, LockMode.READ_UNCOMMITTED);
+            metrics.record(Stage.LOOKUP, start);
+            if (previous != null && !previous.sourceChanged(attrs)) {
+                nDone++;
+                continue;
+            }
+            todo.add(new Pending(file, attrs, previous));
+        }
+        return new int[]{nDone, nVanished};
+    }
+
+    /**
+     * A file that still needs to be collected.
+     */
+    private static class Pending {
+
+        final Path file;
+
+        final BasicFileAttributes attrs;
+
+        final PhotoInfo previous;
+
+        Pending(Path file, BasicFileAttributes attrs, PhotoInfo previous) {
+            this.file = file;
+            this.attrs = attrs;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Escapes the characters in a path that would break up a line of the
+     * plan.
+     */
+    static String escape(String s) {
+        if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                switch (n) {
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    default:
+                        sb.append(n);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
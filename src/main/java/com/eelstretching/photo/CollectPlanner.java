@@ -0,0 +1,152 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.CollectPlan.Action;
+import com.eelstretching.photo.CollectPlan.Entry;
+import com.eelstretching.photo.persist.PhotoInfo;
+import com.sleepycat.je.LockMode;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Date;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Walks the file system and writes a {@link CollectPlan} without reading or
+ * copying any photos. Each photo file is looked up in the DB to decide
+ * whether it needs to be copied, so this is as fast as a walk gets and
+ * changes nothing, which makes it a dry run of a collection.
+ *
+ * <p>
+ * The directory that a photo will go to in the library depends on its
+ * metadata, which we don't read here. The plan has the directory for the
+ * capture time in the DB when we have one and for the modification time of
+ * the file otherwise, which is usually close.
+ */
+public class CollectPlanner implements FileVisitor<Path>, Closeable {
+
+    private static final Logger logger = Logger.getLogger(CollectPlanner.class.getName());
+
+    private final PhotoDB photoDB;
+
+    private final Path outputPath;
+
+    private final Path planFile;
+
+    private final BufferedWriter out;
+
+    private final int[] counts = new int[Action.values().length];
+
+    private final long[] bytes = new long[Action.values().length];
+
+    private int dirsVisited;
+
+    private int otherFiles;
+
+    private boolean closed;
+
+    /**
+     * Creates a planner.
+     *
+     * @param photoDB the DB to check files against
+     * @param outputPath the library directory, which won't be walked
+     * @param planFile where to write the plan
+     * @throws IOException if the plan file can't be created
+     */
+    public CollectPlanner(PhotoDB photoDB, Path outputPath, Path planFile) throws IOException {
+        this.photoDB = photoDB;
+        this.outputPath = outputPath;
+        this.planFile = planFile;
+        out = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(planFile), 64 * 1024), StandardCharsets.UTF_8));
+        out.write(String.format("%s\t%s\t%s%n", CollectPlan.HEADER, Instant.now(), outputPath));
+        out.write(String.format("# action\tsize\tmodified\tbucket\tpath%n"));
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        dirsVisited++;
+        if (dir.equals(outputPath)) {
+            return FileVisitResult.SKIP_SUBTREE;
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (!PhotoVisitor.isPhotoFile(file)) {
+            otherFiles++;
+            return FileVisitResult.CONTINUE;
+        }
+        PhotoInfo previous = photoDB.photoByOrigPath.get(null, file.toString(), LockMode.READ_UNCOMMITTED);
+        Action action;
+        long when = attrs.lastModifiedTime().toMillis();
+        if (previous == null) {
+            action = Action.COPY;
+        } else {
+            action = previous.sourceChanged(attrs) ? Action.RECOPY : Action.SKIP_UNCHANGED;
+            if (previous.getCaptureTime() != null) {
+                when = previous.getCaptureTime();
+            }
+        }
+        write(new Entry(action, attrs.size(), attrs.lastModifiedTime().toMillis(),
+                PhotoVisitor.getBucket(new Date(when)), file.toString()));
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        if (PhotoVisitor.isPhotoFile(file)) {
+            write(new Entry(Action.SKIP_UNREADABLE, -1, 0, "-", file.toString()));
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        return FileVisitResult.CONTINUE;
+    }
+
+    private void write(Entry e) throws IOException {
+        out.write(e.format());
+        out.newLine();
+        counts[e.action.ordinal()]++;
+        if (e.size > 0) {
+            bytes[e.action.ordinal()] += e.size;
+        }
+    }
+
+    /**
+     * Writes the summary at the end of the plan and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Action action : Action.values()) {
+            out.write(String.format("# %s\t%d\t%d%n", action, counts[action.ordinal()], bytes[action.ordinal()]));
+        }
+        out.close();
+        logger.info(getReport());
+    }
+
+    public String getReport() {
+        int copy = Action.COPY.ordinal();
+        int recopy = Action.RECOPY.ordinal();
+        return String.format("Planned %,d new and %,d changed files to copy, %,d bytes. %,d unchanged, %,d unreadable. "
+                + "Visited %,d directories and skipped %,d other files. Plan is in %s",
+                counts[copy], counts[recopy], bytes[copy] + bytes[recopy],
+                counts[Action.SKIP_UNCHANGED.ordinal()], counts[Action.SKIP_UNREADABLE.ordinal()],
+                dirsVisited, otherFiles, planFile);
+    }
+}
@@ -37,7 +37,7 @@ public class DumpInfo {
         try (PhotoDB photoDB = new PhotoDB(photoDBPath)) {
             try (EntityCursor<PhotoInfo> entities = photoDB.photoByFinalPath.entities()) {
                 for(PhotoInfo info : entities) {
-                    System.out.println(info.toString());
+                    System.out.println(photoDB.describe(info));
                 }
             }
         }
@@ -1,6 +1,6 @@
 package com.eelstretching.photo;
 
-import com.eelstretching.photo.persist.PhotoInfo;
+import com.eelstretching.photo.persist.ContentHash;
 import com.oracle.labs.mlrg.olcut.command.Command;
 import com.oracle.labs.mlrg.olcut.command.CommandGroup;
 import com.oracle.labs.mlrg.olcut.command.CommandInterpreter;
@@ -9,8 +9,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -24,9 +22,24 @@ public class FileCommands implements CommandGroup {
 
     private ListCommands listCommands;
 
+    private int batchSize = 500;
+
+    private long batchMillis = 1000;
+
+    private BatchWriter.Durability durability = BatchWriter.Durability.SYNC;
+
+    private int fileThreads = 8;
+
+    private int walkThreads = 1;
+
+    private final IngestMetrics metrics = new IngestMetrics();
+
+    private ContentHash contentHash = ContentHash.MURMUR3_128;
+
     public FileCommands(PhotoDB photoDB, ListCommands listCommands) {
         this.photoDB = photoDB;
         this.listCommands = listCommands;
+        metrics.register();
     }
 
     @Override
@@ -39,31 +52,177 @@ public class FileCommands implements CommandGroup {
         return "Commands that operate on files.";
     }
 
+    @Command(usage = "Set how collected photos are batched into transactions: size, milliseconds and durability (SYNC, WRITE_NO_SYNC or NO_SYNC)")
+    public String batching(CommandInterpreter ci, int batchSize, long batchMillis, String durability) {
+        try {
+            this.durability = BatchWriter.Durability.valueOf(durability.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return "Unknown durability " + durability;
+        }
+        this.batchSize = batchSize;
+        this.batchMillis = batchMillis;
+        return String.format("Batching %,d photos or %,d ms with %s", batchSize, batchMillis, this.durability);
+    }
+
+    @Command(usage = "Set what new contents are hashed with: md5, sha256 or murmur3")
+    public String contentHash(CommandInterpreter ci, String name) {
+        try {
+            contentHash = ContentHash.forId(name);
+        } catch (IllegalArgumentException ex) {
+            return ex.getMessage();
+        }
+        return String.format("Hashing contents with %s", contentHash.getId());
+    }
+
+    @Command(usage = "Set the number of threads used to walk each tree when collecting")
+    public String walkThreads(CommandInterpreter ci, int walkThreads) {
+        this.walkThreads = Math.max(1, walkThreads);
+        return String.format("Walking with %d threads", this.walkThreads);
+    }
+
     @Command(usage = "Collect photos on a given path")
     public String collect(CommandInterpreter ci, boolean overwrite, String... roots) {
-        PhotoVisitor visitor = new PhotoVisitor(photoDB.getDbPath(), photoDB.photoByOrigPath, overwrite);
+        return collect(ci, new PhotoVisitor(photoDB.getDbPath(), photoDB, overwrite), roots);
+    }
 
-        //
-        // Walk all filesystems, looking for JPG and movie files, then copy them.
-        for (String root : roots) {
-            ci.out.format("Walking root %s", root);
+    @Command(usage = "Collect photos on a given path using a number of threads to read and copy files")
+    public String collectParallel(CommandInterpreter ci, int nThreads, boolean overwrite, String... roots) {
+        return collect(ci, new ParallelPhotoVisitor(photoDB.getDbPath(), photoDB, overwrite, nThreads), roots);
+    }
+
+    @Command(usage = "Collect photos on the given paths, walking and copying each device at the same time with a number of threads per device")
+    public String collectDevices(CommandInterpreter ci, int threadsPerDevice, boolean overwrite, String... roots) {
+        return collect(ci, new ParallelPhotoVisitor(photoDB.getDbPath(), photoDB, overwrite, threadsPerDevice, threadsPerDevice * 16, true), roots);
+    }
+
+    @Command(usage = "Collect photos on a given path that are new or have changed since they were collected, using a number of threads")
+    public String update(CommandInterpreter ci, int nThreads, String... roots) {
+        PhotoVisitor visitor = nThreads > 1
+                ? new ParallelPhotoVisitor(photoDB.getDbPath(), photoDB, false, nThreads)
+                : new PhotoVisitor(photoDB.getDbPath(), photoDB, false);
+        visitor.setIncremental(true);
+        return collect(ci, visitor, roots);
+    }
+
+    private String collect(CommandInterpreter ci, PhotoVisitor visitor, String... roots) {
+        visitor.setBatching(batchSize, batchMillis, durability);
+        visitor.setContentHash(contentHash);
+        visitor.setWalkThreads(walkThreads);
+        metrics.reset();
+        visitor.setMetrics(metrics);
+        boolean finished;
+        try {
+            //
+            // Walk all filesystems, looking for JPG and movie files, then copy them.
+            for (String root : roots) {
+                ci.out.format("Walking root %s", root);
+                try {
+                    visitor.walk(Paths.get(root));
+                } catch (IOException ex) {
+                    logger.warning(String.format("Error walking root %s", root));
+                }
+                ci.out.format("Finished walking root %s", root);
+                logger.info(visitor.getReport());
+            }
             try {
-                Files.walkFileTree(Paths.get(root), visitor);
+                visitor.awaitWalks();
             } catch (IOException ex) {
-                logger.warning(String.format("Error walking root %s", root));
+                logger.warning(String.format("Error walking: %s", ex.getMessage()));
             }
-            ci.out.format("Finished walking root %s", root);
-            logger.info(visitor.getReport());
+            metrics.setWalkFinished(true);
+        } finally {
+            finished = finish(visitor);
         }
+        return finished ? visitor.getReport() : "Collection failed. " + visitor.getReport();
+    }
 
-        return visitor.getReport();
+    /**
+     * Closes a visitor, which stores what it has collected and stops its
+     * threads. This has to happen however the collection ends, or photos that
+     * were copied won't be in the DB.
+     *
+     * @return true if everything was stored
+     */
+    private boolean finish(PhotoVisitor visitor) {
+        try {
+            visitor.close();
+            return true;
+        } catch (IOException ex) {
+            logger.warning(String.format("Error finishing collection: %s", ex.getMessage()));
+            return false;
+        }
+    }
 
+    @Command(usage = "Walk the given roots and write a plan of what collecting them would copy, without copying anything")
+    public String plan(CommandInterpreter ci, File planFile, String... roots) {
+        //
+        // The report comes after the planner is closed, so that an error
+        // finishing the plan is reported instead.
+        CollectPlanner planner;
+        try (CollectPlanner p = new CollectPlanner(photoDB, photoDB.getDbPath(), planFile.toPath())) {
+            planner = p;
+            for (String root : roots) {
+                try {
+                    Files.walkFileTree(Paths.get(root), planner);
+                } catch (IOException ex) {
+                    logger.warning(String.format("Error walking root %s", root));
+                }
+            }
+        } catch (IOException ex) {
+            return String.format("Error writing plan %s: %s", planFile, ex.getMessage());
+        }
+        return planner.getReport();
+    }
+
+    @Command(usage = "Collect the files in a plan using a number of threads. Running a plan again finishes whatever is left of it")
+    public String execute(CommandInterpreter ci, int nThreads, File planFile) {
+        CollectPlan plan;
+        try {
+            plan = CollectPlan.read(planFile.toPath());
+        } catch (IOException ex) {
+            return String.format("Error reading plan %s: %s", planFile, ex.getMessage());
+        }
+        PhotoVisitor visitor = nThreads > 1
+                ? new ParallelPhotoVisitor(photoDB.getDbPath(), photoDB, false, nThreads)
+                : new PhotoVisitor(photoDB.getDbPath(), photoDB, false);
+        visitor.setIncremental(true);
+        visitor.setBatching(batchSize, batchMillis, durability);
+        visitor.setContentHash(contentHash);
+        metrics.reset();
+        visitor.setMetrics(metrics);
+        String report;
+        boolean finished;
+        try {
+            report = plan.execute(photoDB, visitor);
+        } catch (IOException ex) {
+            report = String.format("Error executing plan: %s", ex.getMessage());
+        } finally {
+            finished = finish(visitor);
+        }
+        return String.format(finished ? "%s. %s" : "Collection failed. %s. %s", report, visitor.getReport());
+    }
+
+    @Command(usage = "Print counts, bytes and latencies for each stage of the last collection")
+    public String stats(CommandInterpreter ci) {
+        return metrics.getStats();
+    }
+
+    @Command(usage = "Set how often collection progress is logged, in seconds")
+    public String progressInterval(CommandInterpreter ci, int seconds) {
+        metrics.setProgressMillis(Math.max(1, seconds) * 1000L);
+        return String.format("Logging progress every %d seconds", Math.max(1, seconds));
+    }
+
+    @Command(usage = "Set the number of threads used to move and delete files")
+    public String fileThreads(CommandInterpreter ci, int fileThreads) {
+        this.fileThreads = Math.max(1, fileThreads);
+        return String.format("Moving and deleting files with %d threads", this.fileThreads);
     }
 
     @Command(usage = "Move files from the given list into a corresponding directory somewhere else and delete them from the DB")
     public String moveFiles(CommandInterpreter ci, String listName, File outputDir) {
-        List<PhotoInfo> infos = listCommands.getList(listName);
-        if (infos == null) {
+        PhotoList list = listCommands.getList(listName);
+        if (list == null) {
             return "No such list " + listName;
         }
 
@@ -76,49 +235,42 @@ public class FileCommands implements CommandGroup {
             }
         }
 
-        int nm = 0;
-        int nerr = 0;
-        for (PhotoInfo info : infos) {
-            Path origPath = Paths.get(info.getOrigPath());
-            Path relativePath = origPath.subpath(2, origPath.getNameCount());
-            try {
-                Files.move(Paths.get(info.getOrigPath()),
-                        outputPath.resolve(relativePath),
-                        StandardCopyOption.REPLACE_EXISTING,
-                        StandardCopyOption.COPY_ATTRIBUTES);
-                photoDB.photoByOrigPath.delete(info.getOrigPath());
-                nm++;
-            } catch (IOException ex) {
-                logger.warning(String.format("Unable to move %s", origPath));
-                nerr++;
-            }
+        FileOpRunner runner = new FileOpRunner(photoDB, fileThreads, batchSize);
+        if (runner.getPending() > 0) {
+            return String.format("%,d file operations from an earlier run haven't finished. Use resumeFileOps or rollbackFileOps first", runner.getPending());
         }
-
-        return String.format("Moved %,d files, had %,d errors", nm, nerr);
+        return finish(runner, runner.move(list, outputPath));
     }
 
     @Command(usage = "Delete files from a given list and remove them from the DB")
     public String delete(CommandInterpreter ci, String listName) {
-        List<PhotoInfo> infos = listCommands.getList(listName);
-        if (infos == null) {
+        PhotoList list = listCommands.getList(listName);
+        if (list == null) {
             return "No such list " + listName;
         }
 
-        int nd = 0;
-        int nerr = 0;
-        for (PhotoInfo info : infos) {
-            try {
-                Files.delete(Paths.get(info.getOrigPath()));
-                photoDB.photoByOrigPath.delete(info.getOrigPath());
-                nd++;
-            } catch (IOException ex) {
-                logger.warning(String.format("Unable to delete %s", info.getOrigPath()));
-                nerr++;
-            }
+        FileOpRunner runner = new FileOpRunner(photoDB, fileThreads, batchSize);
+        if (runner.getPending() > 0) {
+            return String.format("%,d file operations from an earlier run haven't finished. Use resumeFileOps or rollbackFileOps first", runner.getPending());
         }
+        return finish(runner, runner.delete(list));
+    }
 
-        return String.format("Deleted %,d files, had %,d errors", nd, nerr);
+    @Command(usage = "Finish the moves and deletes from a run that was interrupted")
+    public String resumeFileOps(CommandInterpreter ci) {
+        FileOpRunner runner = new FileOpRunner(photoDB, fileThreads, batchSize);
+        return finish(runner, runner.resume());
+    }
+
+    @Command(usage = "Undo the moves from a run that was interrupted")
+    public String rollbackFileOps(CommandInterpreter ci) {
+        FileOpRunner runner = new FileOpRunner(photoDB, fileThreads, batchSize);
+        return finish(runner, runner.rollback());
+    }
 
+    private String finish(FileOpRunner runner, PhotoList removed) {
+        int nStale = listCommands.markStale(removed);
+        return String.format("%s, %,d lists are now stale", runner.getReport(), nStale);
     }
 
 }
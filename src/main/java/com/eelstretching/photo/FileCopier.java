@@ -0,0 +1,199 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.ContentHash;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Copies a file while computing a digest of its contents, reading the source
+ * only once.
+ *
+ * <p>
+ * Large files are hashed from a read-only mapping of the source and then
+ * copied with {@link FileChannel#transferTo}, which lets the kernel move the
+ * pages that the hash just pulled into the page cache without copying them
+ * into the JVM. Small files aren't worth mapping, so they're read into a
+ * direct buffer that is hashed and then written out.
+ *
+ * <p>
+ * A copier holds a buffer, so it should only be used by one thread at a time.
+ */
+public class FileCopier {
+
+    /**
+     * Files at least this big are mapped rather than read into the buffer.
+     */
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /**
+     * How much of a large file to map at a time.
+     */
+    private static final long MAP_CHUNK = 64 * 1024 * 1024;
+
+    private final ByteBuffer buffer;
+
+    public FileCopier() {
+        this(256 * 1024);
+    }
+
+    public FileCopier(int bufferSize) {
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Makes a new digest for a content hash. Digests aren't thread safe, so
+     * each thread needs its own.
+     *
+     * @param algorithm the content hash
+     * @return the digest
+     */
+    public static MessageDigest newDigest(ContentHash algorithm) {
+        try {
+            switch (algorithm) {
+                case SHA256:
+                    return MessageDigest.getInstance("SHA-256");
+                case MURMUR3_128:
+                    return new Murmur3Digest();
+                default:
+                    return MessageDigest.getInstance("MD5");
+            }
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("No " + algorithm + "? Hmmm", ex);
+        }
+    }
+
+    /**
+     * Copies a file, updating a digest with its contents. The digest is not
+     * reset before or finished after the copy.
+     *
+     * @param origPath the file to copy
+     * @param finalPath where to copy it. Any existing file will be replaced.
+     * @param md the digest to update with the contents of the file
+     * @return the number of bytes copied
+     * @throws IOException if there is an error copying, or if the number of
+     * bytes copied doesn't match the size of the source file.
+     */
+    public long copy(Path origPath, Path finalPath, MessageDigest md) throws IOException {
+        try (FileChannel in = FileChannel.open(origPath, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(finalPath,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long copied = size >= MAP_THRESHOLD
+                    ? mappedCopy(in, out, size, md)
+                    : bufferedCopy(in, out, md);
+            if (copied != size || out.size() != size) {
+                throw new IOException(String.format("Copied %,d bytes of %,d from %s to %s, output is %,d bytes",
+                        copied, size, origPath, finalPath, out.size()));
+            }
+            return copied;
+        }
+    }
+
+    /**
+     * Updates a digest with the contents of a file without copying it.
+     *
+     * @param origPath the file to hash
+     * @param md the digest to update
+     * @return the number of bytes hashed
+     * @throws IOException if there is an error reading the file
+     */
+    public long hash(Path origPath, MessageDigest md) throws IOException {
+        try (FileChannel in = FileChannel.open(origPath, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size >= MAP_THRESHOLD) {
+                long pos = 0;
+                while (pos < size) {
+                    long len = Math.min(MAP_CHUNK, size - pos);
+                    md.update(in.map(FileChannel.MapMode.READ_ONLY, pos, len));
+                    pos += len;
+                }
+                return pos;
+            }
+            long hashed = 0;
+            buffer.clear();
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                hashed += buffer.remaining();
+                md.update(buffer);
+                buffer.clear();
+            }
+            return hashed;
+        }
+    }
+
+    /**
+     * Updates a digest with the first and last few bytes of a file. If the
+     * file is small, this is the whole file.
+     *
+     * @param origPath the file to hash
+     * @param n how many bytes to hash from each end of the file. This must be
+     * no bigger than the copier's buffer.
+     * @param md the digest to update
+     * @return the size of the file
+     * @throws IOException if there is an error reading the file
+     */
+    public long hashEnds(Path origPath, int n, MessageDigest md) throws IOException {
+        try (FileChannel in = FileChannel.open(origPath, StandardOpenOption.READ)) {
+            long size = in.size();
+            hashRange(in, 0, Math.min(n, size), md);
+            if (size > n) {
+                long tail = Math.max(n, size - n);
+                hashRange(in, tail, size - tail, md);
+            }
+            return size;
+        }
+    }
+
+    private void hashRange(FileChannel in, long pos, long len, MessageDigest md) throws IOException {
+        buffer.clear();
+        buffer.limit((int) len);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, pos + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        md.update(buffer);
+    }
+
+    private long mappedCopy(FileChannel in, FileChannel out, long size, MessageDigest md) throws IOException {
+        long pos = 0;
+        while (pos < size) {
+            long len = Math.min(MAP_CHUNK, size - pos);
+            MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, pos, len);
+            md.update(mapped);
+            long transferred = 0;
+            while (transferred < len) {
+                long n = in.transferTo(pos + transferred, len - transferred, out);
+                if (n <= 0) {
+                    return pos + transferred;
+                }
+                transferred += n;
+            }
+            pos += len;
+        }
+        return pos;
+    }
+
+    private long bufferedCopy(FileChannel in, FileChannel out, MessageDigest md) throws IOException {
+        long copied = 0;
+        buffer.clear();
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            md.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                copied += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return copied;
+    }
+}
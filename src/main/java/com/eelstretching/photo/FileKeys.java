@@ -0,0 +1,88 @@
+package com.eelstretching.photo;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * Gets the device and inode of a file from its file key. On Unix the key
+ * looks like <code>(dev=803,ino=1234)</code>, which we get for free with the
+ * attributes from a walk. Where there's no key, or it doesn't look like that,
+ * everything is on one unknown device and files are ordered by path.
+ */
+public class FileKeys {
+
+    /**
+     * The device for files whose device we can't tell.
+     */
+    public static final String UNKNOWN_DEVICE = "unknown";
+
+    private FileKeys() {
+    }
+
+    /**
+     * Gets the device that a file is on.
+     *
+     * @param attrs the attributes of the file
+     * @return the device, or {@link #UNKNOWN_DEVICE}
+     */
+    public static String device(BasicFileAttributes attrs) {
+        String key = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+        if (key == null) {
+            return UNKNOWN_DEVICE;
+        }
+        String dev = field(key, "dev=");
+        return dev == null ? UNKNOWN_DEVICE : dev;
+    }
+
+    /**
+     * Gets the inode of a file.
+     *
+     * @param attrs the attributes of the file
+     * @return the inode, or -1 if we can't tell
+     */
+    public static long inode(BasicFileAttributes attrs) {
+        String key = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+        if (key == null) {
+            return -1;
+        }
+        String ino = field(key, "ino=");
+        if (ino == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(ino);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static String field(String key, String name) {
+        int start = key.indexOf(name);
+        if (start < 0) {
+            return null;
+        }
+        start += name.length();
+        int end = start;
+        while (end < key.length() && key.charAt(end) != ',' && key.charAt(end) != ')') {
+            end++;
+        }
+        return key.substring(start, end);
+    }
+
+    /**
+     * Makes a comparator that orders things by device, then by inode, which
+     * is roughly the order they are laid out on disk, then by path.
+     *
+     * @param <T> the type of things to order
+     * @param attrs gets the attributes of a thing
+     * @param path gets the path of a thing
+     * @return the comparator
+     */
+    public static <T> Comparator<T> diskOrder(Function<T, BasicFileAttributes> attrs,
+            Function<T, String> path) {
+        return Comparator.<T, String>comparing(t -> device(attrs.apply(t)))
+                .thenComparingLong(t -> inode(attrs.apply(t)))
+                .thenComparing(path);
+    }
+}
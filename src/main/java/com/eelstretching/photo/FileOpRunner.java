@@ -0,0 +1,490 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.ContentHash;
+import com.eelstretching.photo.persist.FileOp;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Transaction;
+import com.sleepycat.persist.EntityCursor;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Moves or deletes the files for a list of photos and takes the photos out of
+ * the DB, using a pool of threads for the file operations.
+ *
+ * <p>
+ * Each operation is written to a journal in the DB before its file is
+ * touched. When an operation is finished, the photo and its journal entry are
+ * deleted in the same transaction, and these deletes are batched. If a run is
+ * interrupted, the journal says which photos were in flight, and the run can
+ * be resumed or rolled back. Operations check the file system before doing
+ * anything, so running one that has already been done is harmless.
+ *
+ * <p>
+ * Moves rename the file when the source and target are on the same file
+ * system, and copy and delete it otherwise. A move never replaces a file
+ * that's already at its target: two photos with the same name on different
+ * cards would otherwise end up as one file. When we have to copy, the copy
+ * goes to a temporary file next to the target, and the source is only
+ * deleted once the copy is the right size and has been renamed into place.
+ * If a run stops after the rename but before the delete, the source and the
+ * target are both there when it's resumed, and the move is finished if they
+ * have the same contents.
+ */
+public class FileOpRunner {
+
+    private static final Logger logger = Logger.getLogger(FileOpRunner.class.getName());
+
+    /**
+     * How many journal entries to read or write at once.
+     */
+    private static final int CHUNK_SIZE = 10000;
+
+    private final PhotoDB photoDB;
+
+    private final int nThreads;
+
+    private final int batchSize;
+
+    private final AtomicInteger nRenamed = new AtomicInteger();
+
+    private final AtomicInteger nCopied = new AtomicInteger();
+
+    private final AtomicInteger nDeleted = new AtomicInteger();
+
+    /**
+     * The targets of the moves that are running, so that two moves to the
+     * same target can't both find it free.
+     */
+    private final Set<Path> moving = ConcurrentHashMap.newKeySet();
+
+    private int nDone;
+
+    private int nErrors;
+
+    private int nRestored;
+
+    private PhotoList.Builder removed;
+
+    /**
+     * The outcome of an operation.
+     */
+    private static class Outcome {
+
+        final String origPath;
+
+        final boolean done;
+
+        Outcome(String origPath, boolean done) {
+            this.origPath = origPath;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Creates a runner.
+     *
+     * @param photoDB the DB to take photos out of
+     * @param nThreads the number of threads to use for file operations
+     * @param batchSize the most photos to delete from the DB in one
+     * transaction
+     */
+    public FileOpRunner(PhotoDB photoDB, int nThreads, int batchSize) {
+        this.photoDB = photoDB;
+        this.nThreads = Math.max(1, nThreads);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Checks whether there are operations left over from a run that didn't
+     * finish.
+     *
+     * @return the number of unfinished operations
+     */
+    public long getPending() {
+        return photoDB.fileOps.count();
+    }
+
+    /**
+     * Moves the files for a list of photos into a directory, keeping their
+     * paths below the first two elements of their original paths, and
+     * takes the photos out of the DB.
+     *
+     * @param list the photos to move
+     * @param outputPath the directory to move them to
+     * @return the photos that were moved
+     */
+    public PhotoList move(PhotoList list, Path outputPath) {
+        journal(list, origPath -> {
+            Path source = Paths.get(origPath);
+            Path relativePath = source.subpath(2, source.getNameCount());
+            return new FileOp(origPath, FileOp.Kind.MOVE, outputPath.resolve(relativePath).toString());
+        });
+        return runJournal();
+    }
+
+    /**
+     * Deletes the files for a list of photos and takes the photos out of the
+     * DB.
+     *
+     * @param list the photos to delete
+     * @return the photos that were deleted
+     */
+    public PhotoList delete(PhotoList list) {
+        journal(list, origPath -> new FileOp(origPath, FileOp.Kind.DELETE, null));
+        return runJournal();
+    }
+
+    /**
+     * Finishes the operations left over from a run that didn't finish.
+     *
+     * @return the photos that were moved or deleted
+     */
+    public PhotoList resume() {
+        return runJournal();
+    }
+
+    /**
+     * Undoes the operations left over from a run that didn't finish. Files
+     * that were moved are moved back, and the photos stay in the DB. Files
+     * that were deleted can't be brought back, so those photos are taken out
+     * of the DB.
+     *
+     * @return the photos that were taken out of the DB
+     */
+    public PhotoList rollback() {
+        removed = new PhotoList.Builder(photoDB);
+        List<FileOp> chunk;
+        String lastKey = null;
+        while (!(chunk = readJournal(lastKey)).isEmpty()) {
+            List<Outcome> outcomes = new ArrayList<>();
+            for (FileOp op : chunk) {
+                outcomes.add(new Outcome(op.getOrigPath(), undo(op)));
+            }
+            commit(outcomes, true);
+            lastKey = chunk.get(chunk.size() - 1).getOrigPath();
+        }
+        return removed.build();
+    }
+
+    /**
+     * Writes a journal entry for each photo in a list that is still in the
+     * DB.
+     */
+    private void journal(PhotoList list, Function<String, FileOp> makeOp) {
+        Transaction txn = null;
+        int n = 0;
+        try {
+            for (String origPath : list.keys()) {
+                if (!photoDB.photoByOrigPath.contains(origPath)) {
+                    continue;
+                }
+                if (txn == null) {
+                    txn = photoDB.env.beginTransaction(null, null);
+                }
+                photoDB.fileOps.putNoReturn(txn, makeOp.apply(origPath));
+                if (++n % CHUNK_SIZE == 0) {
+                    txn.commit();
+                    txn = null;
+                }
+            }
+            if (txn != null) {
+                txn.commit();
+            }
+        } finally {
+            if (txn != null && txn.isValid()) {
+                txn.abort();
+            }
+        }
+    }
+
+    /**
+     * Reads the next chunk of the journal.
+     *
+     * @param lastKey the last key of the previous chunk, or <code>null</code>
+     * to start at the beginning
+     */
+    private List<FileOp> readJournal(String lastKey) {
+        List<FileOp> chunk = new ArrayList<>();
+        try (EntityCursor<FileOp> ops = photoDB.fileOps.entities(null, lastKey, false, null, false, CursorConfig.READ_COMMITTED)) {
+            for (FileOp op : ops) {
+                chunk.add(op);
+                if (chunk.size() >= CHUNK_SIZE) {
+                    break;
+                }
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Runs the operations in the journal. The file operations are done by a
+     * pool of threads, with a bounded number of them queued at once, and
+     * this thread deletes the finished photos from the DB in batches.
+     *
+     * @return the photos that were taken out of the DB
+     */
+    private PhotoList runJournal() {
+        removed = new PhotoList.Builder(photoDB);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "file-op");
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore inFlight = new Semaphore(nThreads * 4);
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        List<Outcome> batch = new ArrayList<>();
+        try {
+            List<FileOp> chunk;
+            String lastKey = null;
+            while (!(chunk = readJournal(lastKey)).isEmpty()) {
+                for (FileOp op : chunk) {
+                    inFlight.acquire();
+                    pool.execute(() -> {
+                        try {
+                            outcomes.add(new Outcome(op.getOrigPath(), perform(op)));
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                    outcomes.drainTo(batch);
+                    if (batch.size() >= batchSize) {
+                        commit(batch, false);
+                        batch.clear();
+                    }
+                }
+                lastKey = chunk.get(chunk.size() - 1).getOrigPath();
+            }
+            pool.shutdown();
+            while (!pool.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+                outcomes.drainTo(batch);
+                if (batch.size() >= batchSize) {
+                    commit(batch, false);
+                    batch.clear();
+                }
+            }
+            outcomes.drainTo(batch);
+            commit(batch, false);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.warning("Interrupted running file operations, the rest are still in the journal");
+            pool.shutdownNow();
+            commit(batch, false);
+        }
+        return removed.build();
+    }
+
+    /**
+     * Deletes a batch of finished photos from the DB along with their journal
+     * entries. Journal entries for operations that failed are dropped, and
+     * their photos stay in the DB.
+     *
+     * @param batch the outcomes
+     * @param rollback whether the outcomes are from a rollback, in which case
+     * a successful outcome means that the photo stays
+     */
+    private void commit(List<Outcome> batch, boolean rollback) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Transaction txn = photoDB.env.beginTransaction(null, null);
+        try {
+            for (Outcome outcome : batch) {
+                boolean remove = rollback ? !outcome.done : outcome.done;
+                if (remove) {
+                    photoDB.delete(txn, outcome.origPath);
+                }
+                photoDB.fileOps.delete(txn, outcome.origPath);
+            }
+            txn.commit();
+        } finally {
+            if (txn.isValid()) {
+                txn.abort();
+            }
+        }
+        for (Outcome outcome : batch) {
+            if (rollback ? !outcome.done : outcome.done) {
+                removed.add(outcome.origPath);
+                nDone++;
+            } else if (rollback) {
+                nRestored++;
+            } else {
+                nErrors++;
+            }
+        }
+    }
+
+    /**
+     * Does an operation, unless it's already been done.
+     *
+     * @param op the operation
+     * @return true if the operation has been done
+     */
+    private boolean perform(FileOp op) {
+        Path source = Paths.get(op.getOrigPath());
+        try {
+            switch (op.getKind()) {
+                case MOVE:
+                    Path target = Paths.get(op.getTarget());
+                    if (!Files.exists(source)) {
+                        return Files.exists(target);
+                    }
+                    if (!moving.add(target)) {
+                        throw new FileAlreadyExistsException(target.toString(), null, "another file is being moved there");
+                    }
+                    try {
+                        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                            return finishCopy(source, target);
+                        }
+                        move(source, target);
+                    } finally {
+                        moving.remove(target);
+                    }
+                    return true;
+                case DELETE:
+                    if (Files.deleteIfExists(source)) {
+                        nDeleted.incrementAndGet();
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (IOException ex) {
+            logger.warning(String.format("Unable to %s %s: %s", op.getKind().toString().toLowerCase(), source, ex));
+            return false;
+        }
+    }
+
+    /**
+     * Finishes a move whose source and target are both there, which happens
+     * when a copy was renamed into place but the run stopped before the
+     * source was deleted. If the target is something else, then it's a
+     * different file that we mustn't replace, and the move fails.
+     *
+     * @return true if the target is a copy of the source, which has now been
+     * deleted
+     * @throws IOException if the files can't be compared or the source can't
+     * be deleted
+     */
+    private boolean finishCopy(Path source, Path target) throws IOException {
+        if (Files.size(source) != Files.size(target) || !Arrays.equals(hash(source), hash(target))) {
+            logger.severe(String.format("Not moving %s, because there's a different file at %s", source, target));
+            return false;
+        }
+        Files.delete(source);
+        nCopied.incrementAndGet();
+        return true;
+    }
+
+    private static byte[] hash(Path file) throws IOException {
+        MessageDigest md = FileCopier.newDigest(ContentHash.MURMUR3_128);
+        new FileCopier().hash(file, md);
+        return md.digest();
+    }
+
+    /**
+     * Moves a file to a target where there mustn't be a file already.
+     *
+     * @throws FileAlreadyExistsException if there's a file at the target
+     * @throws IOException if the file can't be moved
+     */
+    private void move(Path source, Path target) throws IOException {
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        Files.createDirectories(target.getParent());
+        try {
+            //
+            // An atomic move replaces whatever is at the target, but we're
+            // the only one moving anything there and we've just checked that
+            // it's free.
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            nRenamed.incrementAndGet();
+            return;
+        } catch (AtomicMoveNotSupportedException ex) {
+            //
+            // Not on the same file system.
+        }
+        //
+        // Only one move to a target runs at a time, so the temporary file's
+        // name can be fixed, and one that's left over from a run that
+        // stopped is half a copy that we can throw away.
+        Path temp = target.resolveSibling("." + target.getFileName() + ".part");
+        Files.deleteIfExists(temp);
+        try {
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            long size = Files.size(source);
+            long copied = Files.size(temp);
+            if (copied != size) {
+                throw new IOException(String.format("Copied %,d bytes of %,d to %s", copied, size, temp));
+            }
+            //
+            // Without any options, a move fails if there's a file at the
+            // target.
+            Files.move(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        Files.delete(source);
+        nCopied.incrementAndGet();
+    }
+
+    /**
+     * Undoes an operation, if it was done.
+     *
+     * @param op the operation
+     * @return true if the photo's file is where it started
+     */
+    private boolean undo(FileOp op) {
+        Path source = Paths.get(op.getOrigPath());
+        if (Files.exists(source)) {
+            return true;
+        }
+        if (op.getKind() != FileOp.Kind.MOVE) {
+            return false;
+        }
+        Path target = Paths.get(op.getTarget());
+        try {
+            Files.createDirectories(source.getParent());
+            Files.move(target, source);
+            return true;
+        } catch (IOException ex) {
+            logger.warning(String.format("Unable to move %s back to %s: %s", target, source, ex));
+            return false;
+        }
+    }
+
+    public int getDone() {
+        return nDone;
+    }
+
+    public int getErrors() {
+        return nErrors;
+    }
+
+    public String getReport() {
+        return String.format("%,d done, %,d errors, %,d restored. Renamed %,d files, copied %,d, deleted %,d",
+                nDone, nErrors, nRestored, nRenamed.get(), nCopied.get(), nDeleted.get());
+    }
+}
@@ -40,7 +40,7 @@ public class GetOrig {
                     }
                     PhotoInfo info = photoDB.photoByFinalPath.get(l);
                     if (info != null) {
-                        System.out.println(info.toString());
+                        System.out.println(photoDB.describe(info));
                     } else {
                         System.out.println(l + " not found");
                     }
@@ -0,0 +1,401 @@
+package com.eelstretching.photo;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts, bytes and latencies for each stage of collecting photos. Recording
+ * a stage is a couple of adds to striped counters and one to a histogram
+ * bucket, so it's cheap enough to do for every file from any number of
+ * threads.
+ *
+ * <p>
+ * Latencies go into histograms with a bucket for each power of two
+ * nanoseconds, so percentiles are only good to within a factor of two, which
+ * is plenty to see which stage is the slow one.
+ *
+ * <p>
+ * Progress is logged at most once every few seconds, with the rates since the
+ * start and an estimate of how long is left. Until the walk is finished we
+ * don't know how many files there are, so the estimate is for the files found
+ * so far.
+ */
+public class IngestMetrics implements IngestMetricsMBean {
+
+    private static final Logger logger = Logger.getLogger(IngestMetrics.class.getName());
+
+    /**
+     * The name that the metrics are registered under.
+     */
+    public static final String OBJECT_NAME = "com.eelstretching.photo:type=IngestMetrics";
+
+    /**
+     * The stages of collecting a photo.
+     */
+    public enum Stage {
+        /**
+         * Walking the file system, between visits to files.
+         */
+        WALK,
+        /**
+         * Looking up paths, fingerprints and hashes in the DB.
+         */
+        LOOKUP,
+        /**
+         * Reading the metadata of a file.
+         */
+        METADATA,
+        /**
+         * Creating the directory and claiming a name in the library.
+         */
+        MKDIR,
+        /**
+         * Copying a file into the library, hashing it on the way.
+         */
+        COPY,
+        /**
+         * Hashing a file without copying it.
+         */
+        HASH,
+        /**
+         * Putting a photo into the DB, including any commit that it causes.
+         */
+        PUT
+    }
+
+    private static final int N_BUCKETS = 64;
+
+    private final StageMetrics[] stages = new StageMetrics[Stage.values().length];
+
+    private final LongAdder filesFound = new LongAdder();
+
+    private final LongAdder filesDone = new LongAdder();
+
+    private final LongAdder bytesDone = new LongAdder();
+
+    private volatile boolean walkFinished;
+
+    private volatile long startNanos;
+
+    private final AtomicLong nextProgress = new AtomicLong();
+
+    private volatile long progressMillis = 10000;
+
+    /**
+     * The metrics for one stage.
+     */
+    private static class StageMetrics {
+
+        final LongAdder count = new LongAdder();
+
+        final LongAdder bytes = new LongAdder();
+
+        final LongAdder nanos = new LongAdder();
+
+        final AtomicLongArray histogram = new AtomicLongArray(N_BUCKETS);
+
+        void reset() {
+            count.reset();
+            bytes.reset();
+            nanos.reset();
+            for (int i = 0; i < N_BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+
+        /**
+         * Gets an upper bound for a percentile of the latencies, in
+         * nanoseconds.
+         */
+        long percentile(double p) {
+            long total = 0;
+            long[] counts = new long[N_BUCKETS];
+            for (int i = 0; i < N_BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < N_BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i >= 62 ? Long.MAX_VALUE : 1L << (i + 1);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public IngestMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = new StageMetrics();
+        }
+        reset();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, replacing any
+     * that were registered before.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException ex) {
+            logger.log(Level.WARNING, "Unable to register ingest metrics", ex);
+        }
+    }
+
+    /**
+     * Gets a timestamp to pass to {@link #record} when a stage is finished.
+     *
+     * @return the current time, in nanoseconds
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records that a stage finished.
+     *
+     * @param stage the stage
+     * @param start when the stage started, from {@link #start()}
+     * @param bytes the number of bytes that the stage handled
+     */
+    public void record(Stage stage, long start, long bytes) {
+        long elapsed = Math.max(0, System.nanoTime() - start);
+        StageMetrics m = stages[stage.ordinal()];
+        m.count.increment();
+        m.nanos.add(elapsed);
+        if (bytes > 0) {
+            m.bytes.add(bytes);
+        }
+        m.histogram.incrementAndGet(63 - Long.numberOfLeadingZeros(elapsed | 1));
+    }
+
+    /**
+     * Records that a stage finished without handling any bytes.
+     *
+     * @param stage the stage
+     * @param start when the stage started, from {@link #start()}
+     */
+    public void record(Stage stage, long start) {
+        record(stage, start, 0);
+    }
+
+    /**
+     * Records that the walk found a file to collect.
+     */
+    public void fileFound() {
+        filesFound.increment();
+    }
+
+    /**
+     * Records that a number of files to collect were found at once, for
+     * example by reading a plan.
+     *
+     * @param n the number of files
+     */
+    public void filesFound(long n) {
+        filesFound.add(n);
+    }
+
+    /**
+     * Records that a file that was found has been dealt with, whether or not
+     * it was collected.
+     *
+     * @param bytes the size of the file
+     */
+    public void fileDone(long bytes) {
+        filesDone.increment();
+        bytesDone.add(bytes);
+    }
+
+    public void setWalkFinished(boolean walkFinished) {
+        this.walkFinished = walkFinished;
+    }
+
+    /**
+     * Sets how often progress is logged.
+     *
+     * @param progressMillis the least time between progress lines, in
+     * milliseconds
+     */
+    public void setProgressMillis(long progressMillis) {
+        this.progressMillis = progressMillis;
+        nextProgress.accumulateAndGet(System.currentTimeMillis() + progressMillis, Math::min);
+    }
+
+    /**
+     * Logs a progress line if it's been long enough since the last one. This
+     * can be called as often as we like, from any thread.
+     */
+    public void maybeLogProgress() {
+        long now = System.currentTimeMillis();
+        long next = nextProgress.get();
+        if (now >= next && nextProgress.compareAndSet(next, now + progressMillis)) {
+            logger.info(getProgress());
+        }
+    }
+
+    @Override
+    public final void reset() {
+        for (StageMetrics m : stages) {
+            m.reset();
+        }
+        filesFound.reset();
+        filesDone.reset();
+        bytesDone.reset();
+        walkFinished = false;
+        startNanos = System.nanoTime();
+        nextProgress.set(System.currentTimeMillis() + progressMillis);
+    }
+
+    private double getElapsedSeconds() {
+        return Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    @Override
+    public long getFilesFound() {
+        return filesFound.sum();
+    }
+
+    @Override
+    public long getFilesDone() {
+        return filesDone.sum();
+    }
+
+    @Override
+    public double getFilesPerSecond() {
+        return filesDone.sum() / getElapsedSeconds();
+    }
+
+    @Override
+    public double getMegabytesPerSecond() {
+        return bytesDone.sum() / (1024.0 * 1024.0) / getElapsedSeconds();
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        double rate = getFilesPerSecond();
+        long left = filesFound.sum() - filesDone.sum();
+        if (rate <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, left) / rate);
+    }
+
+    @Override
+    public boolean isWalkFinished() {
+        return walkFinished;
+    }
+
+    @Override
+    public String[] getStageNames() {
+        Stage[] values = Stage.values();
+        String[] names = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            names[i] = values[i].toString();
+        }
+        return names;
+    }
+
+    @Override
+    public long[] getCounts() {
+        long[] ret = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            ret[i] = stages[i].count.sum();
+        }
+        return ret;
+    }
+
+    @Override
+    public long[] getBytes() {
+        long[] ret = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            ret[i] = stages[i].bytes.sum();
+        }
+        return ret;
+    }
+
+    @Override
+    public double[] getTotalMillis() {
+        double[] ret = new double[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            ret[i] = stages[i].nanos.sum() / 1e6;
+        }
+        return ret;
+    }
+
+    @Override
+    public double[] getMeanMillis() {
+        double[] ret = new double[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            long n = stages[i].count.sum();
+            ret[i] = n == 0 ? 0 : stages[i].nanos.sum() / 1e6 / n;
+        }
+        return ret;
+    }
+
+    @Override
+    public double[] getP50Millis() {
+        return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double[] getP99Millis() {
+        return getPercentileMillis(0.99);
+    }
+
+    private double[] getPercentileMillis(double p) {
+        double[] ret = new double[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            ret[i] = stages[i].percentile(p) / 1e6;
+        }
+        return ret;
+    }
+
+    @Override
+    public String getProgress() {
+        long eta = getEtaSeconds();
+        return String.format("%,d of %,d%s files done, %.1f files/s, %.1f MB/s, ETA %s",
+                getFilesDone(), getFilesFound(), walkFinished ? "" : "+",
+                getFilesPerSecond(), getMegabytesPerSecond(),
+                eta < 0 ? "unknown" : String.format("%s%d:%02d:%02d", walkFinished ? "" : ">",
+                        eta / 3600, (eta / 60) % 60, eta % 60));
+    }
+
+    @Override
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getProgress()).append('\n');
+        sb.append(String.format("%-9s %12s %14s %12s %10s %10s %10s%n",
+                "stage", "count", "bytes", "total ms", "mean ms", "p50 ms", "p99 ms"));
+        String[] names = getStageNames();
+        long[] counts = getCounts();
+        long[] bytes = getBytes();
+        double[] total = getTotalMillis();
+        double[] mean = getMeanMillis();
+        double[] p50 = getP50Millis();
+        double[] p99 = getP99Millis();
+        for (int i = 0; i < names.length; i++) {
+            sb.append(String.format("%-9s %,12d %,14d %,12.1f %,10.3f %,10.3f %,10.3f%n",
+                    names[i], counts[i], bytes[i], total[i], mean[i], p50[i], p99[i]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,48 @@
+package com.eelstretching.photo;
+
+/**
+ * The management interface for {@link IngestMetrics}. The per-stage
+ * attributes are arrays in the order of {@link #getStageNames()}.
+ */
+public interface IngestMetricsMBean {
+
+    long getFilesFound();
+
+    long getFilesDone();
+
+    double getFilesPerSecond();
+
+    double getMegabytesPerSecond();
+
+    /**
+     * Gets an estimate of how long is left, for the files found so far.
+     *
+     * @return the estimate, in seconds, or -1 if we can't tell yet
+     */
+    long getEtaSeconds();
+
+    boolean isWalkFinished();
+
+    String[] getStageNames();
+
+    long[] getCounts();
+
+    long[] getBytes();
+
+    double[] getTotalMillis();
+
+    double[] getMeanMillis();
+
+    double[] getP50Millis();
+
+    double[] getP99Millis();
+
+    String getProgress();
+
+    String getStats();
+
+    /**
+     * Clears all of the metrics and restarts the clock.
+     */
+    void reset();
+}
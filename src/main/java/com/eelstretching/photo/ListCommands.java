@@ -1,9 +1,12 @@
 package com.eelstretching.photo;
 
 import com.eelstretching.photo.persist.PhotoInfo;
+import com.eelstretching.photo.persist.SavedList;
+import com.eelstretching.photo.persist.SavedListHeader;
 import com.oracle.labs.mlrg.olcut.command.Command;
 import com.oracle.labs.mlrg.olcut.command.CommandGroup;
 import com.oracle.labs.mlrg.olcut.command.CommandInterpreter;
+import com.sleepycat.je.Transaction;
 import com.sleepycat.persist.EntityCursor;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -11,13 +14,16 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.MonthDay;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -32,7 +38,13 @@ public class ListCommands implements CommandGroup {
 
     private static final Logger logger = Logger.getLogger(ListCommands.class.getName());
 
-    Map<String, List<PhotoInfo>> lists = new HashMap<>();
+    /**
+     * The lists that we've made or loaded. Lists are saved in the DB when
+     * they're made and loaded from it when they're first used. Each saved
+     * list has a header with its size and whether it's stale, so that we can
+     * answer those without reading its keys.
+     */
+    Map<String, PhotoList> lists = new HashMap<>();
 
     PhotoDB photoDB;
 
@@ -40,8 +52,131 @@ public class ListCommands implements CommandGroup {
         this.photoDB = photoDB;
     }
 
-    public List<PhotoInfo> getList(String name) {
-        return lists.get(name);
+    /**
+     * Gets a list, loading it from the DB if we haven't used it yet.
+     *
+     * @param name the name of the list
+     * @return the list, or <code>null</code> if there's no such list
+     */
+    public PhotoList getList(String name) {
+        PhotoList list = lists.get(name);
+        if (list == null) {
+            list = loadList(name);
+            if (list != null) {
+                lists.put(name, list);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Reads a saved list from the DB.
+     *
+     * @return the list, or <code>null</code> if there's no such list
+     */
+    private PhotoList loadList(String name) {
+        SavedList saved = photoDB.savedLists.get(name);
+        if (saved == null) {
+            return null;
+        }
+        PhotoList list = PhotoList.fromSaved(photoDB, saved);
+        SavedListHeader header = getHeader(name);
+        if (header != null) {
+            list.setStale(header.isStale());
+        }
+        return list;
+    }
+
+    /**
+     * Gets the header of a saved list. Lists saved before there were headers
+     * get one the first time that it's asked for.
+     *
+     * @return the header, or <code>null</code> if there's no such list
+     */
+    private SavedListHeader getHeader(String name) {
+        SavedListHeader header = photoDB.savedListHeaders.get(name);
+        if (header == null) {
+            SavedList saved = photoDB.savedLists.get(name);
+            if (saved == null) {
+                return null;
+            }
+            header = new SavedListHeader(saved);
+            photoDB.savedListHeaders.put(header);
+        }
+        return header;
+    }
+
+    /**
+     * Keeps a list and saves it in the DB.
+     *
+     * @param name the name of the list
+     * @param list the list
+     */
+    public void putList(String name, PhotoList list) {
+        lists.put(name, list);
+        SavedList saved = list.toSaved(name);
+        Transaction txn = photoDB.env.beginTransaction(null, null);
+        try {
+            photoDB.savedLists.put(txn, saved);
+            photoDB.savedListHeaders.put(txn, new SavedListHeader(saved));
+            txn.commit();
+        } finally {
+            if (txn.isValid()) {
+                txn.abort();
+            }
+        }
+    }
+
+    /**
+     * Marks the lists that have any of some photos in them as stale. This
+     * should be called when photos are deleted from the DB. Lists that are
+     * already stale aren't read, and only the header of a list is rewritten
+     * to mark it.
+     *
+     * @param removed the photos that were deleted
+     * @return the number of lists that were marked
+     */
+    public int markStale(PhotoList removed) {
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        int n = 0;
+        for (String name : getListNames()) {
+            SavedListHeader header = getHeader(name);
+            if (header == null || header.isStale()) {
+                continue;
+            }
+            //
+            // Lists that we haven't used are only read for the check, not
+            // kept.
+            PhotoList list = lists.get(name);
+            if (list == null) {
+                list = loadList(name);
+            }
+            if (list == null || !PhotoList.overlaps(list, removed)) {
+                continue;
+            }
+            list.setStale(true);
+            header.setStale(true);
+            photoDB.savedListHeaders.put(header);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Gets the names of the saved lists without loading them.
+     *
+     * @return the names, in order
+     */
+    private List<String> getListNames() {
+        List<String> names = new ArrayList<>();
+        try (EntityCursor<String> keys = photoDB.savedLists.keys()) {
+            for (String name : keys) {
+                names.add(name);
+            }
+        }
+        return names;
     }
 
     @Override
@@ -70,22 +205,9 @@ public class ListCommands implements CommandGroup {
             return "No patterns";
         }
 
-        List<PhotoInfo> infoList = new ArrayList<>();
-        int n = 0;
-        int m = 0;
-        try (EntityCursor<String> kc = photoDB.photoByOrigPath.keys()) {
-            keyLoop:
-            for (String origPath : kc) {
-                for (Pattern pat : patterns) {
-                    if (pat.matcher(origPath).matches()) {
-                        infoList.add(photoDB.photoByOrigPath.get(origPath));
-                        continue keyLoop;
-                    }
-                }
-            }
-        }
+        PhotoList infoList = photoDB.matchPath(patterns);
 
-        lists.put(name, infoList);
+        putList(name, infoList);
 
         return String.format("%,d matching paths for %s", infoList.size(), name);
     }
@@ -106,101 +228,215 @@ public class ListCommands implements CommandGroup {
             return "No patterns";
         }
 
-        List<PhotoInfo> infoList = new ArrayList<>();
-        try (EntityCursor<PhotoInfo> infos = photoDB.photoByOrigPath.entities()) {
-            keyLoop:
-            for (PhotoInfo info : infos) {
-                String value = info.getTagNames().get(tagName);
-                if (value == null) {
+        PhotoList infoList = photoDB.matchTag(tagName, patterns);
+
+        putList(listName, infoList);
+
+        return String.format("%,d matching paths for %s", infoList.size(), listName);
+    }
+
+    @Command(usage = "List the photos that have the same contents as some other photo")
+    public String dupes(CommandInterpreter ci, String listName) {
+        PhotoList.Builder builder = new PhotoList.Builder(photoDB);
+        int nGroups = 0;
+        //
+        // The keys index goes from each content hash to the original paths
+        // with it, so we never read the photos themselves.
+        try (EntityCursor<String> origPaths = photoDB.photoByContentHash.keysIndex().entities()) {
+            for (String origPath = origPaths.first(); origPath != null; origPath = origPaths.nextNoDup()) {
+                String dup = origPaths.nextDup();
+                if (dup == null) {
                     continue;
                 }
-                for (Pattern pat : patterns) {
-                    if (pat.matcher(value).matches()) {
-                        infoList.add(info);
-                        continue keyLoop;
-                    }
+                nGroups++;
+                builder.add(origPath);
+                for (; dup != null; dup = origPaths.nextDup()) {
+                    builder.add(dup);
                 }
-
             }
         }
 
-        lists.put(listName, infoList);
+        PhotoList infoList = builder.build();
+        putList(listName, infoList);
 
-        return String.format("%,d matching paths for %s", infoList.size(), listName);
+        return String.format("%,d photos in %,d groups with the same contents for %s", infoList.size(), nGroups, listName);
     }
 
-    @Command(usage = "Merge two lists into a third")
-    public String merge(CommandInterpreter ci, String l1, String l2, String ml) {
-        List<PhotoInfo> p1 = lists.get(l1);
-        if (p1 == null) {
-            return "Unknown list " + l1;
-        }
-        List<PhotoInfo> p2 = lists.get(l2);
-        if (p2 == null) {
-            return "Unknown list " + l2;
+    @Command(usage = "List the photos captured between two dates (yyyy-mm-dd), inclusive")
+    public String dateRange(CommandInterpreter ci, String listName, String from, String to) {
+        LocalDate fromDate;
+        LocalDate toDate;
+        try {
+            fromDate = LocalDate.parse(from);
+            toDate = LocalDate.parse(to);
+        } catch (DateTimeParseException ex) {
+            return "Dates must be yyyy-mm-dd";
         }
 
-        SortedSet<PhotoInfo> s = new TreeSet<>();
-        s.addAll(p1);
-        s.addAll(p2);
+        PhotoList.Builder builder = new PhotoList.Builder(photoDB);
+        addCaptured(fromDate, toDate.plusDays(1), builder);
 
-        List<PhotoInfo> merge = new ArrayList<>(s);
-        lists.put(ml, merge);
+        PhotoList infoList = builder.build();
+        putList(listName, infoList);
 
-        return String.format("Merge resulted in %,d info", merge.size());
+        return String.format("%,d photos captured from %s to %s for %s", infoList.size(), fromDate, toDate, listName);
     }
 
-    @Command(usage = "Intersect two lists")
-    public String intersect(CommandInterpreter ci, String l1, String l2, String ml) {
-        List<PhotoInfo> p1 = lists.get(l1);
-        if (p1 == null) {
-            return "Unknown list " + l1;
+    @Command(usage = "List the photos captured on this day (or a given mm-dd) in any year")
+    public String onThisDay(CommandInterpreter ci, String listName, String... monthDay) {
+        MonthDay day;
+        try {
+            day = monthDay.length == 0 ? MonthDay.now() : MonthDay.parse("--" + monthDay[0]);
+        } catch (DateTimeParseException ex) {
+            return "Day must be mm-dd";
         }
-        SortedSet<PhotoInfo> s1 = new TreeSet<>(p1);
 
-        List<PhotoInfo> p2 = lists.get(l2);
-        if (p2 == null) {
-            return "Unknown list " + l2;
+        Long first;
+        Long last;
+        try (EntityCursor<Long> times = photoDB.photoByCaptureTime.keys()) {
+            first = times.first();
+            last = times.last();
         }
-        SortedSet<PhotoInfo> s2 = new TreeSet<>(p2);
 
-        SortedSet<PhotoInfo> s3 = new TreeSet<>();
+        PhotoList.Builder builder = new PhotoList.Builder(photoDB);
+        if (first != null) {
+            int firstYear = toLocalDate(first).getYear();
+            int lastYear = toLocalDate(last).getYear();
+            for (int year = firstYear; year <= lastYear; year++) {
+                if (day.isValidYear(year)) {
+                    LocalDate date = day.atYear(year);
+                    addCaptured(date, date.plusDays(1), builder);
+                }
+            }
+        }
+
+        PhotoList infoList = builder.build();
+        putList(listName, infoList);
 
-        for (PhotoInfo info : s1) {
-            if (s2.contains(info)) {
-                s3.add(info);
+        return String.format("%,d photos captured on %02d-%02d for %s", infoList.size(), day.getMonthValue(), day.getDayOfMonth(), listName);
+    }
+
+    /**
+     * Adds the photos captured in a range of days to a list.
+     *
+     * @param from the first day to include
+     * @param to the day after the last day to include
+     * @param builder the list to add to
+     */
+    private void addCaptured(LocalDate from, LocalDate to, PhotoList.Builder builder) {
+        long fromTime = from.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long toTime = to.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        try (EntityCursor<String> origPaths = photoDB.photoByCaptureTime.keysIndex().entities(fromTime, true, toTime, false)) {
+            for (String origPath : origPaths) {
+                builder.add(origPath);
             }
         }
+    }
+
+    private static LocalDate toLocalDate(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    @Command(usage = "Merge lists into a new list, which is named last")
+    public String merge(CommandInterpreter ci, String... listNames) {
+        if (listNames.length < 2) {
+            return "Give the lists to merge and then the name of the new list";
+        }
+        List<PhotoList> inputs = new ArrayList<>();
+        String missing = getLists(listNames, inputs);
+        if (missing != null) {
+            return "Unknown list " + missing;
+        }
+
+        PhotoList merge = PhotoList.union(photoDB, inputs);
+        putList(listNames[listNames.length - 1], merge);
+
+        return String.format("Merge resulted in %,d info", merge.size());
+    }
+
+    @Command(usage = "Intersect lists into a new list, which is named last")
+    public String intersect(CommandInterpreter ci, String... listNames) {
+        if (listNames.length < 2) {
+            return "Give the lists to intersect and then the name of the new list";
+        }
+        List<PhotoList> inputs = new ArrayList<>();
+        String missing = getLists(listNames, inputs);
+        if (missing != null) {
+            return "Unknown list " + missing;
+        }
 
-        List<PhotoInfo> intersect = new ArrayList<>(s3);
-        lists.put(ml, intersect);
+        PhotoList intersect = PhotoList.intersect(photoDB, inputs);
+        putList(listNames[listNames.length - 1], intersect);
 
         return String.format("Intersected resulted in %,d info", intersect.size());
     }
 
+    @Command(usage = "Make a new list, which is named last, of the photos in one list that aren't in any of a number of others")
+    public String difference(CommandInterpreter ci, String from, String... listNames) {
+        if (listNames.length < 1) {
+            return "Give the list to take photos from, the lists of photos to leave out, and then the name of the new list";
+        }
+        PhotoList fromList = getList(from);
+        if (fromList == null) {
+            return "Unknown list " + from;
+        }
+        List<PhotoList> inputs = new ArrayList<>();
+        String missing = getLists(listNames, inputs);
+        if (missing != null) {
+            return "Unknown list " + missing;
+        }
+
+        PhotoList difference = PhotoList.difference(photoDB, fromList, inputs);
+        putList(listNames[listNames.length - 1], difference);
+
+        return String.format("Difference resulted in %,d info", difference.size());
+    }
+
+    /**
+     * Looks up the input lists of a command that makes a new list. The
+     * inputs are named first and the new list is named last, as they are
+     * for merge and intersect.
+     *
+     * @param listNames the names of the input lists, followed by the name of
+     * the new list
+     * @param found where to put the input lists
+     * @return the name of the first input list that doesn't exist, or
+     * <code>null</code> if they all do
+     */
+    private String getLists(String[] listNames, List<PhotoList> found) {
+        for (int i = 0; i < listNames.length - 1; i++) {
+            PhotoList list = getList(listNames[i]);
+            if (list == null) {
+                return listNames[i];
+            }
+            found.add(list);
+        }
+        return null;
+    }
+
     @Command(usage = "Show contents of the list")
     public String show(CommandInterpreter ci, String listName) {
-        List<PhotoInfo> infos = getList(listName);
+        PhotoList infos = getList(listName);
         if (infos == null) {
             return "No such list " + listName;
         }
 
-        for (PhotoInfo info : infos) {
-            ci.out.println(info.getOrigPath());
+        for (String origPath : infos.keys()) {
+            ci.out.println(origPath);
         }
         return "";
     }
 
     @Command(usage = "Write list to a file")
     public String write(CommandInterpreter ci, String listName, File outputFile) {
-        List<PhotoInfo> infos = getList(listName);
+        PhotoList infos = getList(listName);
         if (infos == null) {
             return "No such list " + listName;
         }
 
         try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8))) {
-            for (PhotoInfo info : infos) {
-                pw.println(info.getOrigPath());
+            for (String origPath : infos.keys()) {
+                pw.println(origPath);
             }
         } catch (IOException ex) {
             logger.warning(String.format("Error writing output file %s", outputFile));
@@ -211,8 +447,19 @@ public class ListCommands implements CommandGroup {
 
     @Command(usage = "Drop a list")
     public String drop(CommandInterpreter ci, String listName) {
-        List<PhotoInfo> infos = lists.remove(listName);
-        if (infos == null) {
+        lists.remove(listName);
+        boolean deleted;
+        Transaction txn = photoDB.env.beginTransaction(null, null);
+        try {
+            photoDB.savedListHeaders.delete(txn, listName);
+            deleted = photoDB.savedLists.delete(txn, listName);
+            txn.commit();
+        } finally {
+            if (txn.isValid()) {
+                txn.abort();
+            }
+        }
+        if (!deleted) {
             return "No such list " + listName;
         } 
         return "Removed list " + listName;
@@ -220,11 +467,31 @@ public class ListCommands implements CommandGroup {
     
     @Command(usage = "List lists")
     public String list(CommandInterpreter ci) {
-        Set<String> sorted = new TreeSet<>(lists.keySet());
-        for(String list : sorted) {
-            ci.out.format("%s: %,d", list, lists.get(list).size());
+        List<String> names = getListNames();
+        for(String name : names) {
+            SavedListHeader header = getHeader(name);
+            if (header != null) {
+                ci.out.format("%s: %,d%s%n", name, header.getSize(), header.isStale() ? " (stale)" : "");
+            }
+        }
+        return String.format("%d lists saved", names.size());
+    }
+
+    @Command(usage = "Take photos that have been deleted out of a stale list")
+    public String refresh(CommandInterpreter ci, String listName) {
+        PhotoList list = getList(listName);
+        if (list == null) {
+            return "No such list " + listName;
+        }
+        PhotoList.Builder builder = new PhotoList.Builder(photoDB);
+        try (PhotoList.Photos photos = list.photos()) {
+            for (PhotoInfo info : photos) {
+                builder.add(info.getOrigPath());
+            }
         }
-        return String.format("%d lists saved", lists.size());
+        PhotoList refreshed = builder.build();
+        putList(listName, refreshed);
+        return String.format("Removed %,d deleted photos from %s", list.size() - refreshed.size(), listName);
     }
     /**
      * Reusable method to get a completor for engine names
@@ -233,7 +500,7 @@ public class ListCommands implements CommandGroup {
      */
     public Completer[] writeCompletors() {
         return new Completer[]{
-            new StringsCompleter(lists.keySet()),
+            new StringsCompleter(getListNames()),
             new FileNameCompleter()
         };
     }
@@ -245,7 +512,7 @@ public class ListCommands implements CommandGroup {
      */
     public Completer[] listCompletor() {
         return new Completer[]{
-            new StringsCompleter(lists.keySet())
+            new StringsCompleter(getListNames())
         };
 
     }
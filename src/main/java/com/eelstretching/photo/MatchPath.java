@@ -1,6 +1,6 @@
 package com.eelstretching.photo;
 
-import com.sleepycat.persist.EntityCursor;
+import com.eelstretching.photo.persist.PhotoInfo;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -44,22 +44,14 @@ public class MatchPath {
         }
 
         try (PhotoDB photoDB = new PhotoDB(photoDBPath)) {
-            logger.info(String.format("Processing %,d photos", photoDB.photoByOrigPath.map().size()));
-            int n = 0;
-            try(EntityCursor<String> kc = photoDB.photoByOrigPath.keys()) {
-                keyLoop: for(String origPath : kc) {
-                    for(Pattern pat : patterns) {
-                        if(pat.matcher(origPath).matches()) {
-                            System.out.println(photoDB.photoByOrigPath.get(origPath));
-                            continue keyLoop;
-                        }
-                    }
-                    n++;
-                    if (n % 10000 == 0) {
-                        logger.info(String.format("Processed %,d keys", n));
-                    }
+            logger.info(String.format("Processing %,d photos", photoDB.photoByOrigPath.count()));
+            PhotoList matches = photoDB.matchPath(patterns);
+            try (PhotoList.Photos photos = matches.photos()) {
+                for (PhotoInfo info : photos) {
+                    System.out.println(photoDB.describe(info));
                 }
             }
+            logger.info(String.format("%,d matching photos", matches.size()));
         }
     }
     
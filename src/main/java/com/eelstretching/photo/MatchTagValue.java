@@ -1,7 +1,6 @@
 package com.eelstretching.photo;
 
 import com.eelstretching.photo.persist.PhotoInfo;
-import com.sleepycat.persist.EntityCursor;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -47,24 +46,10 @@ public class MatchTagValue {
         }
 
         try (PhotoDB photoDB = new PhotoDB(photoDBPath)) {
-            logger.info(String.format("Processing %,d photos", photoDB.photoByOrigPath.map().size()));
-            int n = 0;
-            try(EntityCursor<PhotoInfo> infos = photoDB.photoByOrigPath.entities()) {
-                keyLoop: for(PhotoInfo info : infos) {
-                    String value = info.getTagNames().get(tagName);
-                    if(value == null) {
-                        continue;
-                    }
-                    for(Pattern pat : patterns) {
-                        if(pat.matcher(value).matches()) {
-                            System.out.println(info);
-                            continue keyLoop;
-                        }
-                    }
-                    n++;
-                    if (n % 10000 == 0) {
-                        logger.info(String.format("Processed %,d keys", n));
-                    }
+            logger.info(String.format("Processing %,d photos", photoDB.photoByOrigPath.count()));
+            try (PhotoList.Photos photos = photoDB.matchTag(tagName, patterns).photos()) {
+                for (PhotoInfo info : photos) {
+                    System.out.println(photoDB.describe(info));
                 }
             }
         }
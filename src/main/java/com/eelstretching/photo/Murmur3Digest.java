@@ -0,0 +1,160 @@
+package com.eelstretching.photo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * The 128 bit, x64 variant of MurmurHash3 as a streaming
+ * {@link MessageDigest}, so that it can be used anywhere we'd use MD5. It's
+ * not a cryptographic hash, but it's good enough to find duplicate photos,
+ * and it's several times faster. The digest is the same as Guava's
+ * <code>murmur3_128</code> with a seed of 0.
+ *
+ * <p>
+ * Like any digest, an instance should only be used by one thread at a time.
+ */
+public class Murmur3Digest extends MessageDigest {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private long h1;
+
+    private long h2;
+
+    private long length;
+
+    /**
+     * Bytes that didn't make up a whole block yet.
+     */
+    private final ByteBuffer tail = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+
+    public Murmur3Digest() {
+        super("Murmur3-128");
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineReset() {
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        tail.clear();
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        tail.put(input);
+        length++;
+        if (!tail.hasRemaining()) {
+            tail.flip();
+            block(tail.getLong(0), tail.getLong(8));
+            tail.clear();
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        engineUpdate(ByteBuffer.wrap(input, offset, len));
+    }
+
+    /**
+     * Reads whole blocks straight out of the buffer, which is what keeps this
+     * fast for the direct and mapped buffers that the copier hashes.
+     */
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        length += input.remaining();
+        ByteBuffer in = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (tail.position() > 0) {
+            while (tail.hasRemaining() && in.hasRemaining()) {
+                tail.put(in.get());
+            }
+            if (tail.hasRemaining()) {
+                input.position(in.position());
+                return;
+            }
+            block(tail.getLong(0), tail.getLong(8));
+            tail.clear();
+        }
+        int pos = in.position();
+        int limit = in.limit();
+        while (limit - pos >= 16) {
+            block(in.getLong(pos), in.getLong(pos + 8));
+            pos += 16;
+        }
+        while (pos < limit) {
+            tail.put(in.get(pos++));
+        }
+        input.position(limit);
+    }
+
+    private void block(long k1, long k2) {
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        int n = tail.position();
+        if (n > 0) {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = Math.min(n, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | (tail.get(i) & 0xffL);
+            }
+            for (int i = n - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | (tail.get(i) & 0xffL);
+            }
+            h1 ^= mixK1(k1);
+            h2 ^= mixK2(k2);
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        byte[] digest = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putLong(h1).putLong(h2).array();
+        engineReset();
+        return digest;
+    }
+}
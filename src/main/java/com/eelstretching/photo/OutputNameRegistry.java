@@ -0,0 +1,287 @@
+package com.eelstretching.photo;
+
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.persist.EntityCursor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out names for files in the library that nothing else is using. For
+ * each directory, we keep the names that are taken, which are read once from
+ * the directory and from the final paths in the DB the first time that the
+ * directory is used. After that, picking a name is a lookup in memory and
+ * creating the empty file that reserves it, rather than a stat for every name
+ * that we try. Directories are created the first time that they're used.
+ *
+ * <p>
+ * When a name is taken, we add numbers to it, so <code>IMG_0001.JPG</code>
+ * becomes <code>IMG_0001-0001.JPG</code>, and so on. We remember the last
+ * number used for each name, so a popular name doesn't mean trying every
+ * number again.
+ *
+ * <p>
+ * This is safe to use from multiple threads. Only a bounded number of
+ * directories are remembered. Because every name that's handed out has a file
+ * on disk, a directory that's forgotten is read back in correctly the next
+ * time it's used.
+ *
+ * <p>
+ * The first time that we read a directory, we also note its orphans: files
+ * that are there but that no photo in the DB has. These are usually copies
+ * made by a run that stopped before it could store them, and the collector
+ * can take one over instead of copying the same file again. We keep the
+ * orphans of every directory that we've read, so that forgetting a directory
+ * doesn't turn the files that we've made since into orphans.
+ */
+public class OutputNameRegistry {
+
+    /**
+     * The most directories to remember.
+     */
+    private static final int MAX_DIRS = 4096;
+
+    private final PhotoDB photoDB;
+
+    private final ConcurrentMap<Path, DirNames> dirs = new ConcurrentHashMap<>();
+
+    /**
+     * The orphans in each directory that we've read, which aren't forgotten.
+     */
+    private final ConcurrentMap<Path, Set<String>> orphans = new ConcurrentHashMap<>();
+
+    /**
+     * The names in one directory.
+     */
+    private static class DirNames {
+
+        final Set<String> taken;
+
+        /**
+         * The last number added to each name.
+         */
+        final Map<String, Integer> lastNumber = new HashMap<>();
+
+        DirNames(Set<String> taken) {
+            this.taken = taken;
+        }
+    }
+
+    public OutputNameRegistry(PhotoDB photoDB) {
+        this.photoDB = photoDB;
+    }
+
+    /**
+     * Picks a name in a directory that isn't in use yet and creates an empty
+     * file with that name, so that nothing else can pick the same one.
+     *
+     * @param fileDir the directory, which is created if it doesn't exist
+     * @param fileName the name that we'd like
+     * @return the path of the new file
+     * @throws IOException if the directory or the file can't be created
+     */
+    public Path claim(Path fileDir, Path fileName) throws IOException {
+        DirNames names = getNames(fileDir);
+        synchronized (names) {
+            String name = fileName.toString();
+            if (names.taken.contains(name)) {
+                name = nextName(names, name);
+            }
+            while (true) {
+                Path filePath = fileDir.resolve(name);
+                try {
+                    Files.createFile(filePath);
+                    names.taken.add(name);
+                    return filePath;
+                } catch (FileAlreadyExistsException ex) {
+                    //
+                    // Something outside of this registry made it.
+                    names.taken.add(name);
+                    name = nextName(names, fileName.toString());
+                } catch (NoSuchFileException ex) {
+                    //
+                    // Someone removed the directory.
+                    Files.createDirectories(fileDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives back a name that was claimed, once its file has been deleted.
+     *
+     * @param filePath the path that was claimed
+     */
+    public void release(Path filePath) {
+        DirNames names = dirs.get(filePath.getParent());
+        if (names != null) {
+            synchronized (names) {
+                names.taken.remove(filePath.getFileName().toString());
+            }
+        }
+    }
+
+    /**
+     * Gets the orphans in a directory that have a name, or a numbered version
+     * of it.
+     *
+     * @param fileDir the directory
+     * @param fileName the name
+     * @return the paths of the orphans
+     * @throws IOException if the directory can't be read
+     */
+    public List<Path> getOrphans(Path fileDir, Path fileName) throws IOException {
+        getNames(fileDir);
+        Set<String> dirOrphans = orphans.get(fileDir);
+        if (dirOrphans == null || dirOrphans.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String name = fileName.toString();
+        String namePart = name;
+        String ext = "";
+        int ind = namePart.indexOf('.');
+        if (ind >= 0 && ind < namePart.length() - 1) {
+            ext = namePart.substring(ind);
+            namePart = namePart.substring(0, ind);
+        }
+        List<Path> found = new ArrayList<>();
+        synchronized (dirOrphans) {
+            for (String orphan : dirOrphans) {
+                if (orphan.equals(name) || isNumbered(orphan, namePart, ext)) {
+                    found.add(fileDir.resolve(orphan));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks whether a name is one that {@link #nextName} could have made.
+     */
+    private static boolean isNumbered(String name, String namePart, String ext) {
+        int numEnd = name.length() - ext.length();
+        int numStart = namePart.length() + 1;
+        if (numEnd - numStart < 4 || !name.startsWith(namePart) || !name.endsWith(ext)
+                || name.charAt(namePart.length()) != '-') {
+            return false;
+        }
+        for (int i = numStart; i < numEnd; i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes over an orphan, so that it isn't handed out again.
+     *
+     * @param filePath the path of the orphan
+     * @return true if it was an orphan that nobody had taken over yet
+     */
+    public boolean adopt(Path filePath) {
+        Set<String> dirOrphans = orphans.get(filePath.getParent());
+        if (dirOrphans == null) {
+            return false;
+        }
+        synchronized (dirOrphans) {
+            return dirOrphans.remove(filePath.getFileName().toString());
+        }
+    }
+
+    private String nextName(DirNames names, String fileName) {
+        String namePart = fileName;
+        String ext = null;
+        int ind = namePart.indexOf('.');
+        if (ind >= 0 && ind < namePart.length() - 1) {
+            ext = namePart.substring(ind + 1);
+            namePart = namePart.substring(0, ind);
+        }
+        int n = names.lastNumber.getOrDefault(fileName, 0);
+        String name;
+        do {
+            n++;
+            name = ext == null
+                    ? String.format("%s-%04d", namePart, n)
+                    : String.format("%s-%04d.%s", namePart, n, ext);
+        } while (names.taken.contains(name));
+        names.lastNumber.put(fileName, n);
+        return name;
+    }
+
+    private DirNames getNames(Path fileDir) throws IOException {
+        DirNames names = dirs.get(fileDir);
+        if (names != null) {
+            return names;
+        }
+        if (dirs.size() >= MAX_DIRS) {
+            Iterator<Path> it = dirs.keySet().iterator();
+            for (int i = 0; i < MAX_DIRS / 4 && it.hasNext(); i++) {
+                it.next();
+                it.remove();
+            }
+        }
+        try {
+            return dirs.computeIfAbsent(fileDir, d -> {
+                try {
+                    return new DirNames(readNames(d));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Reads the names that are taken in a directory, creating it if it doesn't
+     * exist.
+     */
+    private Set<String> readNames(Path fileDir) throws IOException {
+        Set<String> taken = new HashSet<>();
+        Set<String> onDisk = new HashSet<>();
+        if (Files.isDirectory(fileDir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(fileDir)) {
+                for (Path entry : entries) {
+                    onDisk.add(entry.getFileName().toString());
+                }
+            }
+        } else {
+            Files.createDirectories(fileDir);
+        }
+        //
+        // Photos in the DB keep their names even if their files are gone.
+        String prefix = fileDir.toString() + fileDir.getFileSystem().getSeparator();
+        try (EntityCursor<String> paths = photoDB.photoByFinalPath.keys(null, prefix, true,
+                prefix + Character.MAX_VALUE, false, CursorConfig.READ_UNCOMMITTED)) {
+            for (String path : paths) {
+                String name = path.substring(prefix.length());
+                if (name.indexOf(fileDir.getFileSystem().getSeparator().charAt(0)) < 0) {
+                    taken.add(name);
+                }
+            }
+        }
+        if (!orphans.containsKey(fileDir)) {
+            Set<String> dirOrphans = new HashSet<>(onDisk);
+            dirOrphans.removeAll(taken);
+            orphans.putIfAbsent(fileDir, dirOrphans.isEmpty() ? Collections.emptySet() : dirOrphans);
+        }
+        taken.addAll(onDisk);
+        return taken;
+    }
+}
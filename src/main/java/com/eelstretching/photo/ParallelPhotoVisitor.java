@@ -0,0 +1,472 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.PhotoInfo;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A photo visitor that collects files in a pipeline. The thread walking the
+ * file system puts photo files onto a bounded queue, a pool of workers reads
+ * the metadata and copies the files, and a single writer thread stores the
+ * results in the DB. The walk blocks when the workers fall behind.
+ *
+ * <p>
+ * In device mode, there is a lane for each device that files are on, with its
+ * own queue, its own {@link ParallelWalker} and a fixed number of workers, so
+ * that every disk is kept busy without any of them being thrashed by too many
+ * readers. Walks started with {@link #walk(Path)} run on the walker for the
+ * root's device, and when a walk reaches a directory on another device, that
+ * directory is handed over to the other device's walker. Each walker has
+ * {@link #getWalkThreads()} threads. Files are queued a directory at a time,
+ * in inode order, which is close to the order that they're laid out on disk.
+ *
+ * <p>
+ * Once the walk is finished, {@link #close()} must be called to wait for the
+ * pipeline to drain.
+ */
+public class ParallelPhotoVisitor extends PhotoVisitor {
+
+    private static final Logger logger = Logger.getLogger(ParallelPhotoVisitor.class.getName());
+
+    /**
+     * Marks the end of the files to process.
+     */
+    private static final QueuedFile END_OF_FILES = new QueuedFile(null, null, null);
+
+    /**
+     * Marks the end of the infos to store.
+     */
+    private static final PhotoInfo END_OF_INFOS = new PhotoInfo();
+
+    /**
+     * The lane for all files when we're not in device mode.
+     */
+    private static final String ALL_DEVICES = "all";
+
+    private final int nThreads;
+
+    private final int queueSize;
+
+    private final boolean deviceMode;
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<PhotoInfo> infos;
+
+    private final ExecutorService threads;
+
+    private final Thread writer;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final Queue<Future<?>> walks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Files found by the device walkers, by directory, waiting for their
+     * directory to be finished so that they can be queued in order.
+     */
+    private final ConcurrentMap<Path, List<QueuedFile>> dirFiles = new ConcurrentHashMap<>();
+
+    private boolean closed;
+
+    /**
+     * The queue and workers for the files on one device.
+     */
+    private class Lane {
+
+        final String device;
+
+        final BlockingQueue<QueuedFile> files = new ArrayBlockingQueue<>(queueSize);
+
+        final ParallelWalker walker;
+
+        Lane(String device, int nWorkers) {
+            this.device = device;
+            for (int i = 0; i < nWorkers; i++) {
+                threads.execute(() -> work(this));
+            }
+            walker = deviceMode ? new ParallelWalker("walk-" + device, getWalkThreads(), ParallelPhotoVisitor.this::acceptWalkedFile) : null;
+        }
+    }
+
+    public ParallelPhotoVisitor(Path outputPath, PhotoDB photoDB, boolean overwrite, int nThreads) {
+        this(outputPath, photoDB, overwrite, nThreads, nThreads * 16);
+    }
+
+    public ParallelPhotoVisitor(Path outputPath, PhotoDB photoDB, boolean overwrite, int nThreads, int queueSize) {
+        this(outputPath, photoDB, overwrite, nThreads, queueSize, false);
+    }
+
+    /**
+     * Creates a visitor.
+     *
+     * @param outputPath the library directory
+     * @param photoDB the DB to store photos in
+     * @param overwrite whether to collect files that are already in the DB
+     * @param nThreads the number of workers, or in device mode, the number of
+     * workers for each device
+     * @param queueSize how many files can be queued for the workers, or in
+     * device mode, for each device
+     * @param deviceMode whether to schedule work by device
+     */
+    public ParallelPhotoVisitor(Path outputPath, PhotoDB photoDB, boolean overwrite, int nThreads, int queueSize, boolean deviceMode) {
+        super(outputPath, photoDB, overwrite);
+        this.nThreads = Math.max(1, nThreads);
+        this.queueSize = Math.max(1, queueSize);
+        this.deviceMode = deviceMode;
+        infos = new ArrayBlockingQueue<>(this.queueSize);
+        AtomicInteger threadNum = new AtomicInteger();
+        threads = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "collect-" + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        if (!deviceMode) {
+            lanes.put(ALL_DEVICES, new Lane(ALL_DEVICES, this.nThreads));
+        }
+        writer = new Thread(this::write, "collect-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Gets the lane for a device, starting its workers if it's new.
+     *
+     * @param device the device
+     * @param path a path on the device, to name it by
+     */
+    private Lane getLane(String device, Path path) {
+        if (!deviceMode) {
+            return lanes.get(ALL_DEVICES);
+        }
+        return lanes.computeIfAbsent(device, d -> {
+            String store;
+            try {
+                store = Files.getFileStore(path).toString();
+            } catch (IOException ex) {
+                store = "unknown file store";
+            }
+            logger.info(String.format("Collecting from device %s, %s, with %d threads", d, store, nThreads));
+            return new Lane(d, nThreads);
+        });
+    }
+
+    /**
+     * Gets the lane whose walker the calling thread belongs to.
+     *
+     * @return the lane, or <code>null</code> if this isn't a device walker
+     * thread
+     */
+    private Lane getWalkLane() {
+        if (!deviceMode) {
+            return null;
+        }
+        for (Lane lane : lanes.values()) {
+            if (lane.walker.isWalkerThread()) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * In device mode, starts walking a tree on the walker for its device and
+     * returns. Otherwise, walks the tree and waits for the walk.
+     *
+     * @param root the root of the tree
+     * @throws IOException if there is an error walking the tree
+     */
+    @Override
+    public void walk(Path root) throws IOException {
+        if (!deviceMode) {
+            super.walk(root);
+            return;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class);
+        submitWalk(root, FileKeys.device(attrs));
+    }
+
+    private void submitWalk(Path root, String device) {
+        Lane lane = getLane(device, root);
+        walks.add(lane.walker.submit(() -> {
+            try {
+                try {
+                    lane.walker.walk(root, this);
+                } finally {
+                    flushUnder(root);
+                }
+            } catch (IOException ex) {
+                logger.warning(String.format("Error walking %s: %s", root, ex));
+            }
+            return null;
+        }));
+    }
+
+    @Override
+    public void awaitWalks() throws IOException {
+        Future<?> f;
+        while ((f = walks.poll()) != null) {
+            try {
+                f.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for walks to finish");
+            } catch (ExecutionException ex) {
+                fail(ex.getCause());
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * In device mode, hands directories on other devices over to their own
+     * walkers.
+     */
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        Lane current = getWalkLane();
+        if (current != null) {
+            String device = FileKeys.device(attrs);
+            if (!device.equals(current.device)) {
+                submitWalk(dir, device);
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+        }
+        return super.preVisitDirectory(dir, attrs);
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (failure.get() != null) {
+            return FileVisitResult.TERMINATE;
+        }
+        return super.visitFile(file, attrs);
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (getWalkLane() != null) {
+            List<QueuedFile> files = dirFiles.remove(dir);
+            if (files != null) {
+                enqueue(files);
+            }
+        }
+        return super.postVisitDirectory(dir, exc);
+    }
+
+    /**
+     * Puts the file on the queue for the workers, waiting for space if the
+     * queue is full. Files found by a device walker are held until their
+     * directory is done.
+     */
+    @Override
+    protected void handleFile(Path file, BasicFileAttributes attrs, PhotoInfo previous) throws IOException {
+        QueuedFile qf = new QueuedFile(file, attrs, previous);
+        if (getWalkLane() != null) {
+            //
+            // Added under the map's lock, so that a list is never added to
+            // while it's being queued.
+            dirFiles.compute(file.getParent(), (k, files) -> {
+                List<QueuedFile> l = files == null ? new ArrayList<>() : files;
+                l.add(qf);
+                return l;
+            });
+            return;
+        }
+        enqueue(qf);
+    }
+
+    private void enqueue(List<QueuedFile> files) throws IOException {
+        files.sort(FileKeys.diskOrder(qf -> qf.attrs, qf -> qf.file.toString()));
+        for (QueuedFile qf : files) {
+            enqueue(qf);
+        }
+    }
+
+    private void enqueue(QueuedFile qf) throws IOException {
+        BlockingQueue<QueuedFile> files = getLane(FileKeys.device(qf.attrs), qf.file).files;
+        try {
+            while (!files.offer(qf, 100, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted queueing " + qf.file);
+        }
+    }
+
+    /**
+     * Queues whatever is still being held for a walk that's finished, for
+     * roots that are files and walks that stopped early. Directories that
+     * belong to other walks are left alone, since their walkers may still be
+     * adding to them.
+     *
+     * @param root the root of the walk
+     */
+    private void flushUnder(Path root) throws IOException {
+        Path parent = Files.isDirectory(root) ? null : root.getParent();
+        for (Path dir : dirFiles.keySet()) {
+            if (!dir.startsWith(root) && !dir.equals(parent)) {
+                continue;
+            }
+            List<QueuedFile> files = dirFiles.remove(dir);
+            if (files != null) {
+                enqueue(files);
+            }
+        }
+    }
+
+    private void work(Lane lane) {
+        try {
+            while (true) {
+                QueuedFile qf = lane.files.take();
+                if (qf == END_OF_FILES) {
+                    return;
+                }
+                PhotoInfo info = collectFile(qf.file, qf.attrs, qf.previous);
+                if (info != null) {
+                    while (!infos.offer(info, 100, TimeUnit.MILLISECONDS)) {
+                        if (failure.get() != null) {
+                            return;
+                        }
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                PhotoInfo info = infos.poll(100, TimeUnit.MILLISECONDS);
+                if (info == null) {
+                    maybeCommit();
+                    continue;
+                }
+                if (info == END_OF_INFOS) {
+                    return;
+                }
+                store(info);
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Records the first failure in the pipeline and throws away any queued
+     * work so that everything can shut down.
+     */
+    private void fail(Throwable t) {
+        if (failure.compareAndSet(null, t)) {
+            logger.log(Level.SEVERE, "Collection failed", t);
+        }
+        for (Lane lane : lanes.values()) {
+            lane.files.clear();
+        }
+        infos.clear();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("Collection failed", t);
+        }
+    }
+
+    /**
+     * Waits for any walks, then for all of the queued files to be collected
+     * and stored, then shuts down the workers and the writer and commits the
+     * last batch.
+     *
+     * @throws IOException if anything in the pipeline failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            try {
+                awaitWalks();
+            } catch (IOException ex) {
+                //
+                // Recorded as the failure, which we'll throw below.
+            }
+            for (Lane lane : lanes.values()) {
+                if (lane.walker != null) {
+                    lane.walker.close();
+                }
+                for (int i = 0; i < nThreads; i++) {
+                    while (!lane.files.offer(END_OF_FILES, 100, TimeUnit.MILLISECONDS)) {
+                        if (failure.get() != null) {
+                            lane.files.clear();
+                        }
+                    }
+                }
+            }
+            threads.shutdown();
+            threads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            while (!infos.offer(END_OF_INFOS, 100, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    infos.clear();
+                }
+            }
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            threads.shutdownNow();
+            for (Lane lane : lanes.values()) {
+                if (lane.walker != null) {
+                    lane.walker.shutdownNow();
+                }
+            }
+            writer.interrupt();
+            throw new InterruptedIOException("Interrupted waiting for collection to finish");
+        }
+        super.close();
+        checkFailure();
+    }
+
+    /**
+     * A file waiting to be collected.
+     */
+    private static class QueuedFile {
+
+        final Path file;
+
+        final BasicFileAttributes attrs;
+
+        final PhotoInfo previous;
+
+        QueuedFile(Path file, BasicFileAttributes attrs, PhotoInfo previous) {
+            this.file = file;
+            this.attrs = attrs;
+            this.previous = previous;
+        }
+    }
+}
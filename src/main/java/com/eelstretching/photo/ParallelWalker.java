@@ -0,0 +1,275 @@
+package com.eelstretching.photo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Walks trees of files with a pool of threads, calling the same methods on a
+ * {@link FileVisitor} that {@link Files#walkFileTree(Path, FileVisitor)}
+ * would. Each directory is listed by its own task in a work stealing pool, so
+ * that while one thread is waiting for a big or slow directory, the others
+ * keep listing the rest of the tree.
+ *
+ * <p>
+ * Entries are read with a {@link DirectoryStream}, and only the files whose
+ * paths pass the file filter are passed to
+ * {@link FileVisitor#visitFile(Object, BasicFileAttributes)}, so the visitor
+ * never sees the files that we don't want.
+ *
+ * <p>
+ * The visitor is called from many threads at once, so it must be thread safe.
+ * A directory is only post-visited once everything under it has been walked.
+ * Links are not followed. Returning
+ * {@link FileVisitResult#SKIP_SIBLINGS} from
+ * {@link FileVisitor#preVisitDirectory(Object, BasicFileAttributes)} only
+ * skips that directory, since its siblings may already have been walked.
+ */
+public class ParallelWalker implements Closeable {
+
+    private final ForkJoinPool pool;
+
+    private final Predicate<Path> fileFilter;
+
+    /**
+     * Creates a walker.
+     *
+     * @param name the name for the walker's threads
+     * @param nThreads the number of threads to walk with
+     * @param fileFilter which files to visit
+     */
+    public ParallelWalker(String name, int nThreads, Predicate<Path> fileFilter) {
+        this.fileFilter = fileFilter;
+        AtomicInteger threadNum = new AtomicInteger();
+        pool = new ForkJoinPool(Math.max(1, nThreads), p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName(name + "-" + threadNum.incrementAndGet());
+            return t;
+        }, null, false);
+    }
+
+    /**
+     * Walks a tree, waiting until the whole tree has been walked.
+     *
+     * @param root the root of the tree
+     * @param visitor the visitor to call for each directory and file
+     * @throws IOException if the visitor throws an exception
+     */
+    public void walk(Path root, FileVisitor<Path> visitor) throws IOException {
+        Walk walk = new Walk(visitor);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException ex) {
+            visitor.visitFileFailed(root, ex);
+            return;
+        }
+        if (!attrs.isDirectory()) {
+            visitor.visitFile(root, attrs);
+            return;
+        }
+        DirTask task = new DirTask(walk, root, attrs);
+        try {
+            if (ForkJoinTask.getPool() == pool) {
+                task.invoke();
+            } else {
+                pool.invoke(task);
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Runs a task on the walker's threads. This is how to start a walk
+     * without waiting for it to finish.
+     *
+     * @param <T> the type of the task's result
+     * @param task the task
+     * @return the future result of the task
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * Checks whether the calling thread is one of this walker's threads.
+     *
+     * @return true if it is
+     */
+    public boolean isWalkerThread() {
+        return ForkJoinTask.getPool() == pool;
+    }
+
+    /**
+     * Stops the walker's threads once any walks that are running finish.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Stops the walker's threads now.
+     */
+    public void shutdownNow() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * The state of one walk.
+     */
+    private static class Walk {
+
+        final FileVisitor<Path> visitor;
+
+        volatile boolean terminated;
+
+        Walk(FileVisitor<Path> visitor) {
+            this.visitor = visitor;
+        }
+    }
+
+    /**
+     * Walks a directory: visits its files and starts a task for each of its
+     * subdirectories.
+     */
+    private class DirTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final Walk walk;
+
+        final Path dir;
+
+        final BasicFileAttributes attrs;
+
+        DirTask(Walk walk, Path dir, BasicFileAttributes attrs) {
+            this.walk = walk;
+            this.dir = dir;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected void compute() {
+            if (walk.terminated) {
+                return;
+            }
+            List<DirTask> subdirs = new ArrayList<>();
+            try {
+                FileVisitResult result = walk.visitor.preVisitDirectory(dir, attrs);
+                if (result != FileVisitResult.CONTINUE) {
+                    walk.terminated |= result == FileVisitResult.TERMINATE;
+                    return;
+                }
+                DirectoryStream<Path> entries;
+                try {
+                    entries = Files.newDirectoryStream(dir);
+                } catch (IOException ex) {
+                    walk.terminated |= walk.visitor.visitFileFailed(dir, ex) == FileVisitResult.TERMINATE;
+                    return;
+                }
+                IOException exc = list(entries, subdirs);
+                joinAll(subdirs);
+                if (!walk.terminated) {
+                    walk.terminated |= walk.visitor.postVisitDirectory(dir, exc) == FileVisitResult.TERMINATE;
+                }
+            } catch (IOException ex) {
+                walk.terminated = true;
+                joinAll(subdirs);
+                throw new UncheckedIOException(ex);
+            } catch (RuntimeException | Error ex) {
+                walk.terminated = true;
+                joinAll(subdirs);
+                throw ex;
+            }
+        }
+
+        /**
+         * Goes through the directory's entries, visiting the files that we
+         * want and forking a task for each subdirectory.
+         *
+         * @return the exception that stopped the listing, if there was one
+         */
+        private IOException list(DirectoryStream<Path> entries, List<DirTask> subdirs) throws IOException {
+            IOException exc = null;
+            try {
+                for (Path entry : entries) {
+                    if (walk.terminated) {
+                        break;
+                    }
+                    BasicFileAttributes entryAttrs;
+                    try {
+                        entryAttrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException ex) {
+                        walk.terminated |= walk.visitor.visitFileFailed(entry, ex) == FileVisitResult.TERMINATE;
+                        continue;
+                    }
+                    if (entryAttrs.isDirectory()) {
+                        DirTask task = new DirTask(walk, entry, entryAttrs);
+                        task.fork();
+                        subdirs.add(task);
+                    } else if (fileFilter.test(entry)) {
+                        FileVisitResult result = walk.visitor.visitFile(entry, entryAttrs);
+                        if (result == FileVisitResult.TERMINATE) {
+                            walk.terminated = true;
+                        } else if (result == FileVisitResult.SKIP_SIBLINGS) {
+                            break;
+                        }
+                    }
+                }
+            } catch (DirectoryIteratorException ex) {
+                exc = ex.getCause();
+            } finally {
+                try {
+                    entries.close();
+                } catch (IOException ex) {
+                    if (exc == null) {
+                        exc = ex;
+                    }
+                }
+            }
+            return exc;
+        }
+
+        /**
+         * Waits for all of the subdirectories, even if one of them fails, so
+         * that nothing is still being walked when the walk returns.
+         */
+        private void joinAll(List<DirTask> subdirs) {
+            RuntimeException failure = null;
+            for (DirTask task : subdirs) {
+                try {
+                    task.join();
+                } catch (RuntimeException ex) {
+                    walk.terminated = true;
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+            subdirs.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
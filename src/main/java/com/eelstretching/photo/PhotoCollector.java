@@ -31,30 +31,86 @@ public class PhotoCollector {
             roots[0] = new File(args[1]);
         }
 
+        //
+        // The third argument is either whether to overwrite, or "incremental"
+        // to only collect files that have changed.
         boolean overwrite = false;
+        boolean incremental = false;
         if (args.length > 2) {
-            overwrite = Boolean.parseBoolean(args[2]);
+            if (args[2].equalsIgnoreCase("incremental")) {
+                incremental = true;
+            } else {
+                overwrite = Boolean.parseBoolean(args[2]);
+            }
+        }
+
+        int nThreads = 1;
+        if (args.length > 3) {
+            nThreads = Integer.parseInt(args[3]);
+        }
+
+        //
+        // If the fifth argument is "devices", then the number of threads is
+        // per device, and devices are walked and copied at the same time.
+        boolean deviceMode = args.length > 4 && args[4].equalsIgnoreCase("devices");
+
+        //
+        // The sixth argument is the number of threads to walk each tree with.
+        int walkThreads = 1;
+        if (args.length > 5) {
+            walkThreads = Integer.parseInt(args[5]);
+        }
+
+        //
+        // The seventh argument is the percentage of the heap to use for the
+        // DB's cache when a new DB is bulk loaded.
+        int bulkLoadCachePercent = PhotoDB.DEFAULT_BULK_LOAD_CACHE_PERCENT;
+        if (args.length > 6) {
+            bulkLoadCachePercent = Integer.parseInt(args[6]);
         }
 
         Path photoDBPath
                 = outputPath.resolve("photo.db");
         
+        //
+        // A new DB is bulk loaded, and reopened as usual when we're done.
+        boolean bulkLoad = PhotoDB.isEmpty(photoDBPath);
+
         if(!Files.exists(photoDBPath)) {
             Files.createDirectories(photoDBPath);
         }
 
-        try (PhotoDB photoDB = new PhotoDB(outputPath, photoDBPath)) {
+        try (PhotoDB photoDB = new PhotoDB(outputPath, photoDBPath, bulkLoad, bulkLoadCachePercent)) {
+            if (bulkLoad) {
+                logger.info(String.format("Bulk loading new DB %s", photoDBPath));
+            }
 
-            PhotoVisitor visitor = new PhotoVisitor(outputPath, photoDB.photoByOrigPath, overwrite);
+            PhotoVisitor visitor = nThreads > 1 || deviceMode
+                    ? new ParallelPhotoVisitor(outputPath, photoDB, overwrite, nThreads, nThreads * 16, deviceMode)
+                    : new PhotoVisitor(outputPath, photoDB, overwrite);
+            visitor.setIncremental(incremental);
+            visitor.setWalkThreads(walkThreads);
+            IngestMetrics metrics = new IngestMetrics();
+            metrics.register();
+            visitor.setMetrics(metrics);
 
-            //
-            // Walk all filesystems, looking for JPG and movie files, then copy them.
-            for (File root : roots) {
-                logger.info(String.format("Walking root %s", root));
-                Files.walkFileTree(root.toPath(), visitor);
-                logger.info(String.format("Finished walking root %s", root));
+            try {
+                //
+                // Walk all filesystems, looking for JPG and movie files, then copy them.
+                for (File root : roots) {
+                    logger.info(String.format("Walking root %s", root));
+                    visitor.walk(root.toPath());
+                }
+                visitor.awaitWalks();
+                logger.info(String.format("Finished walking"));
                 logger.info(visitor.getReport());
+                metrics.setWalkFinished(true);
+            } finally {
+                visitor.close();
             }
+            photoDB.finishBulkLoad();
+            logger.info(visitor.getReport());
+            logger.info(metrics.getStats());
         }
 
     }
@@ -1,26 +1,66 @@
 package com.eelstretching.photo;
 
+import com.eelstretching.photo.persist.FileOp;
 import com.eelstretching.photo.persist.PhotoInfo;
+import com.eelstretching.photo.persist.SavedList;
+import com.eelstretching.photo.persist.SavedListHeader;
+import com.eelstretching.photo.persist.TagDictionary;
+import com.eelstretching.photo.persist.TagKey;
+import com.eelstretching.photo.persist.TagPosting;
 import com.oracle.labs.mlrg.olcut.command.CommandInterpreter;
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.je.CheckpointConfig;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
 import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.StoreConfig;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
+ * The photos that we've collected, and the indexes that we keep on them.
  *
+ * <p>
+ * A new DB can be opened in bulk load mode for a first import. The store is
+ * then non-transactional and deferred-write, with a bigger cache and no
+ * checkpoints or cleaning, so photos are only written to the log when the
+ * cache fills up or the store is synced. Nothing else can open the DB while
+ * it's being loaded. When the load is done, {@link #finishBulkLoad()} syncs
+ * and checkpoints the store and reopens it as usual.
  */
 public class PhotoDB implements Closeable {
 
+    private static final Logger logger = Logger.getLogger(PhotoDB.class.getName());
+
     protected Path dbPath;
     
     protected Path photoPath;
@@ -33,29 +73,172 @@ public class PhotoDB implements Closeable {
 
     protected SecondaryIndex<String, String, PhotoInfo> photoByFinalPath;
 
+    protected SecondaryIndex<String, String, PhotoInfo> photoByContentHash;
+
+    protected SecondaryIndex<String, String, PhotoInfo> photoByFingerprint;
+
+    protected SecondaryIndex<Long, String, PhotoInfo> photoByCaptureTime;
+
+    /**
+     * An inverted index from tag values to the photos that have them. This is
+     * kept up to date by {@link #put} and {@link #delete}, so photos should
+     * only be written and deleted through those.
+     */
+    protected PrimaryIndex<TagKey, TagPosting> tagPostings;
+
+    protected TagDictionary tagDictionary;
+
+    /**
+     * Named lists of photos.
+     */
+    protected PrimaryIndex<String, SavedList> savedLists;
+
+    protected PrimaryIndex<String, SavedListHeader> savedListHeaders;
+
+    /**
+     * The journal of file operations that have been started but not
+     * finished.
+     */
+    protected PrimaryIndex<String, FileOp> fileOps;
+
+    /**
+     * The fewest photos worth scanning as a separate range.
+     */
+    private static final long MIN_SCAN_RANGE = 10000;
+
+    private volatile int scanThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The pool for parallel scans, made when it's first needed and again
+     * when the number of scan threads changes.
+     */
+    private ForkJoinPool scanPool;
+
+    /**
+     * The percentage of the heap to use for the cache while bulk loading, if
+     * we're not told otherwise. The rest is for the collector's threads and
+     * queues and its filter of the paths that are in the DB.
+     */
+    public static final int DEFAULT_BULK_LOAD_CACHE_PERCENT = 50;
+
+    private final int bulkLoadCachePercent;
+
+    /**
+     * The lock held while we're bulk loading, or <code>null</code> if we're
+     * not.
+     */
+    private BulkLoadLock bulkLoadLock;
+
     public PhotoDB(Path dbPath) {
         this.dbPath = dbPath;
         photoPath = dbPath.subpath(0, dbPath.getNameCount() - 1);
+        bulkLoadCachePercent = DEFAULT_BULK_LOAD_CACHE_PERCENT;
+        checkBulkLoad();
         init();
     }
     
     public PhotoDB(Path photoPath, Path dbPath) {
+        this(photoPath, dbPath, false);
+    }
+
+    /**
+     * Opens a DB, optionally in bulk load mode.
+     *
+     * @param photoPath the library directory
+     * @param dbPath the DB directory
+     * @param bulkLoad whether to open the DB for a bulk load
+     * @throws IllegalStateException if the DB is being bulk loaded already
+     */
+    public PhotoDB(Path photoPath, Path dbPath, boolean bulkLoad) {
+        this(photoPath, dbPath, bulkLoad, DEFAULT_BULK_LOAD_CACHE_PERCENT);
+    }
+
+    /**
+     * Opens a DB, optionally in bulk load mode with a given cache size.
+     *
+     * @param photoPath the library directory
+     * @param dbPath the DB directory
+     * @param bulkLoad whether to open the DB for a bulk load
+     * @param bulkLoadCachePercent the percentage of the heap to use for the
+     * cache while bulk loading
+     * @throws IllegalStateException if the DB is being bulk loaded already
+     */
+    public PhotoDB(Path photoPath, Path dbPath, boolean bulkLoad, int bulkLoadCachePercent) {
+        if (bulkLoadCachePercent < 1 || bulkLoadCachePercent > 90) {
+            throw new IllegalArgumentException("Bulk load cache percent must be between 1 and 90, not " + bulkLoadCachePercent);
+        }
         this.photoPath = photoPath;
         this.dbPath = dbPath;
+        this.bulkLoadCachePercent = bulkLoadCachePercent;
+        if (bulkLoad) {
+            try {
+                bulkLoadLock = BulkLoadLock.acquire(dbPath);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Can't lock " + dbPath + " for a bulk load", ex);
+            }
+        } else {
+            checkBulkLoad();
+        }
         init();
     }
-    
+
+    private void checkBulkLoad() {
+        try {
+            BulkLoadLock.check(dbPath);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Can't check for a bulk load of " + dbPath, ex);
+        }
+    }
+
+    /**
+     * Recovers a DB whose bulk load was interrupted, so that it can be
+     * opened. Photos that were stored after the load's last sync are missing
+     * from the DB, and are picked up by collecting again.
+     *
+     * @param dbPath the DB directory
+     * @return true if there was an interrupted load to recover from
+     * @throws IllegalStateException if the DB is being bulk loaded
+     * @throws IOException if the DB can't be recovered
+     */
+    public static boolean recoverBulkLoad(Path dbPath) throws IOException {
+        return BulkLoadLock.recover(dbPath);
+    }
+
+    /**
+     * Checks whether a DB directory has nothing in it yet, so that it can be
+     * bulk loaded.
+     *
+     * @param dbPath the DB directory
+     * @return true if there's no DB there
+     * @throws IOException if the directory can't be read
+     */
+    public static boolean isEmpty(Path dbPath) throws IOException {
+        if (!Files.isDirectory(dbPath)) {
+            return true;
+        }
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(dbPath, "*.jdb")) {
+            return !logs.iterator().hasNext();
+        }
+    }
+
     private void init() {
         
+        boolean bulkLoad = bulkLoadLock != null;
         EnvironmentConfig envConfig = new EnvironmentConfig();
         envConfig.setAllowCreate(true);
-        envConfig.setTransactional(true);
+        envConfig.setTransactional(!bulkLoad);
+        if (bulkLoad) {
+            envConfig.setCachePercent(bulkLoadCachePercent);
+            envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false");
+            envConfig.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, "false");
+        }
 
         env = new Environment(dbPath.toFile(), envConfig);
 
         StoreConfig storeConfig = new StoreConfig();
         storeConfig.setAllowCreate(true);
-        storeConfig.setTransactional(true);
+        storeConfig.setTransactional(!bulkLoad);
+        storeConfig.setDeferredWrite(bulkLoad);
 
         store = new EntityStore(env, "PhotoInfoStore", storeConfig);
         
@@ -63,9 +246,587 @@ public class PhotoDB implements Closeable {
                 = store.getPrimaryIndex(String.class, PhotoInfo.class);
         photoByFinalPath
                 = store.getSecondaryIndex(photoByOrigPath, String.class, "finalPath");
+        photoByContentHash
+                = store.getSecondaryIndex(photoByOrigPath, String.class, "contentHash");
+        photoByFingerprint
+                = store.getSecondaryIndex(photoByOrigPath, String.class, "fingerprint");
+        photoByCaptureTime
+                = store.getSecondaryIndex(photoByOrigPath, Long.class, "captureTime");
+        tagPostings
+                = store.getPrimaryIndex(TagKey.class, TagPosting.class);
+        savedLists
+                = store.getPrimaryIndex(String.class, SavedList.class);
+        savedListHeaders
+                = store.getPrimaryIndex(String.class, SavedListHeader.class);
+        fileOps
+                = store.getPrimaryIndex(String.class, FileOp.class);
+        tagDictionary = new TagDictionary(store);
+        if (!bulkLoad) {
+            clearUnknownCaptureTimes();
+        }
 
     }
-    
+
+    /**
+     * Takes the photos that older versions stored with a capture time of 0,
+     * because they didn't know it, out of the capture time index.
+     */
+    private void clearUnknownCaptureTimes() {
+        int n = 0;
+        while (photoByCaptureTime.contains(0L)) {
+            List<String> origPaths = new ArrayList<>();
+            try (EntityCursor<String> keys = photoByCaptureTime.subIndex(0L).keys(null, CursorConfig.READ_COMMITTED)) {
+                String origPath;
+                while (origPaths.size() < 1000 && (origPath = keys.next()) != null) {
+                    origPaths.add(origPath);
+                }
+            }
+            Transaction txn = env.beginTransaction(null, null);
+            try {
+                for (String origPath : origPaths) {
+                    PhotoInfo info = photoByOrigPath.get(txn, origPath, LockMode.RMW);
+                    if (info != null && info.getCaptureTime() != null && info.getCaptureTime() == 0) {
+                        info.setCaptureTime(null);
+                        photoByOrigPath.putNoReturn(txn, info);
+                        n++;
+                    }
+                }
+                txn.commit();
+            } finally {
+                if (txn.isValid()) {
+                    txn.abort();
+                }
+            }
+        }
+        if (n > 0) {
+            logger.info(String.format("Cleared the unknown capture times of %,d photos", n));
+        }
+    }
+
+    /**
+     * Gets a writer that will put photos into the DB in batched transactions.
+     *
+     * @param batchSize the most photos to put in one transaction
+     * @param batchMillis the longest to keep a transaction open, in
+     * milliseconds
+     * @param durability how durable commits should be
+     * @return a batch writer. It must be closed to commit the last batch.
+     */
+    public BatchWriter getBatchWriter(int batchSize, long batchMillis, BatchWriter.Durability durability) {
+        return new BatchWriter(this, batchSize, batchMillis, durability);
+    }
+
+    /**
+     * Puts a photo into the DB, updating the tag index.
+     *
+     * @param txn the transaction to put the photo in
+     * @param info the photo to put
+     */
+    public void put(Transaction txn, PhotoInfo info) {
+        info.compact(tagDictionary);
+        PhotoInfo old = photoByOrigPath.put(txn, info);
+        if (old != null) {
+            deletePostings(txn, old);
+        }
+        addPostings(txn, info);
+    }
+
+    /**
+     * Deletes a photo from the DB, updating the tag index.
+     *
+     * @param txn the transaction to delete the photo in
+     * @param origPath the original path of the photo to delete
+     * @return true if the photo was in the DB
+     */
+    public boolean delete(Transaction txn, String origPath) {
+        PhotoInfo old = photoByOrigPath.get(txn, origPath, LockMode.RMW);
+        if (old == null) {
+            return false;
+        }
+        deletePostings(txn, old);
+        return photoByOrigPath.delete(txn, origPath);
+    }
+
+    /**
+     * Deletes a photo from the DB in its own transaction, updating the tag
+     * index.
+     *
+     * @param origPath the original path of the photo to delete
+     * @return true if the photo was in the DB
+     */
+    public boolean delete(String origPath) {
+        Transaction txn = env.beginTransaction(null, null);
+        try {
+            boolean deleted = delete(txn, origPath);
+            txn.commit();
+            return deleted;
+        } finally {
+            if (txn.isValid()) {
+                txn.abort();
+            }
+        }
+    }
+
+    /**
+     * Gets the tags of a photo that was read from this DB, with their names
+     * looked up in this DB's tag dictionary.
+     *
+     * @param info the photo
+     * @return an unmodifiable map from tag names to values
+     */
+    public Map<String, String> getTagNames(PhotoInfo info) {
+        return info.getTagNames(tagDictionary);
+    }
+
+    /**
+     * Gets the value of one tag of a photo that was read from this DB.
+     *
+     * @param info the photo
+     * @param tagName the name of the tag
+     * @return the value, or <code>null</code> if the photo doesn't have the
+     * tag
+     */
+    public String getTagValue(PhotoInfo info, String tagName) {
+        return info.getTagValue(tagDictionary, tagName);
+    }
+
+    /**
+     * Gets the type of metadata directory of a photo that was read from this
+     * DB.
+     *
+     * @param info the photo
+     * @return the directory type
+     */
+    public String getDirectoryType(PhotoInfo info) {
+        return info.getDirectoryType(tagDictionary);
+    }
+
+    /**
+     * Describes a photo that was read from this DB, with its tags.
+     *
+     * @param info the photo
+     * @return the description
+     */
+    public String describe(PhotoInfo info) {
+        return info.toString(tagDictionary);
+    }
+
+    private void addPostings(Transaction txn, PhotoInfo info) {
+        for (Map.Entry<String, String> e : getTagNames(info).entrySet()) {
+            if (e.getKey() != null && e.getValue() != null) {
+                tagPostings.putNoReturn(txn, new TagPosting(new TagKey(e.getKey(), TagKey.normalize(e.getValue()), info.getOrigPath())));
+            }
+        }
+    }
+
+    private void deletePostings(Transaction txn, PhotoInfo info) {
+        for (Map.Entry<String, String> e : getTagNames(info).entrySet()) {
+            if (e.getKey() != null && e.getValue() != null) {
+                tagPostings.delete(txn, new TagKey(e.getKey(), TagKey.normalize(e.getValue()), info.getOrigPath()));
+            }
+        }
+    }
+
+    /**
+     * Finds the photos whose original paths match any of a number of patterns.
+     * Patterns with a literal prefix only look at the range of paths that
+     * start with it. If any pattern doesn't have one, then we scan all of the
+     * photos once for all of the patterns.
+     *
+     * @param patterns the patterns to match against the original paths
+     * @return the photos that match
+     */
+    public PhotoList matchPath(List<Pattern> patterns) {
+        PhotoList.Builder matches = new PhotoList.Builder(this);
+        List<RegexPrefix> prefixes = new ArrayList<>();
+        boolean scanAll = false;
+        for (Pattern pat : patterns) {
+            RegexPrefix rp = RegexPrefix.of(pat.pattern());
+            //
+            // Our range skipping only knows about ASCII case.
+            if (rp.getPrefix().isEmpty() || (pat.flags() & Pattern.UNICODE_CASE) != 0) {
+                scanAll = true;
+                break;
+            }
+            prefixes.add(rp);
+        }
+        if (scanAll) {
+            scan(info -> {
+                for (Pattern pat : patterns) {
+                    if (pat.matcher(info.getOrigPath()).matches()) {
+                        return info.getOrigPath();
+                    }
+                }
+                return null;
+            }, matches::add);
+        } else {
+            for (int i = 0; i < patterns.size(); i++) {
+                Pattern pat = patterns.get(i);
+                RegexPrefix rp = prefixes.get(i);
+                String prefix = rp.getPrefix();
+                Predicate<String> filter;
+                if (rp.isLiteral()) {
+                    filter = origPath -> origPath.length() == prefix.length();
+                } else if (rp.isPrefixOnly()) {
+                    filter = origPath -> true;
+                } else {
+                    filter = origPath -> pat.matcher(origPath).matches();
+                }
+                findPaths(prefix, (pat.flags() & Pattern.CASE_INSENSITIVE) != 0, filter, matches);
+            }
+        }
+        return matches.build();
+    }
+
+    /**
+     * Finds the photos whose original paths start with a prefix. When case
+     * doesn't matter, the paths that start with the different case variants
+     * of the prefix are in different places, so we skip from one to the
+     * next.
+     *
+     * @param prefix the prefix
+     * @param ignoreCase whether to ignore ASCII case when matching the prefix
+     * @param filter a further test for the original paths
+     * @param matches where to put the original paths of the matching photos
+     */
+    private void findPaths(String prefix, boolean ignoreCase, Predicate<String> filter, PhotoList.Builder matches) {
+        String from = ignoreCase ? PrefixRange.lowest(prefix) : prefix;
+        while (from != null) {
+            String next = null;
+            try (EntityCursor<String> keys = photoByOrigPath.keys(from, true, null, false)) {
+                for (String origPath : keys) {
+                    if (!PrefixRange.startsWith(origPath, prefix, ignoreCase)) {
+                        if (ignoreCase) {
+                            next = PrefixRange.next(origPath, prefix);
+                        }
+                        break;
+                    }
+                    if (filter.test(origPath)) {
+                        matches.add(origPath);
+                    }
+                }
+            }
+            from = next;
+        }
+    }
+
+    /**
+     * Finds the photos with a value for a tag that matches any of a number of
+     * patterns. Patterns with a literal prefix are answered from the tag
+     * index. If any pattern doesn't have one, then we have to scan all of the
+     * photos for that pattern.
+     *
+     * @param tagName the name of the tag
+     * @param patterns the patterns to match against the value of the tag,
+     * which is trimmed and lower-cased as it is in the index. These should be
+     * case insensitive.
+     * @return the photos that match
+     */
+    public PhotoList matchTag(String tagName, List<Pattern> patterns) {
+        PhotoList.Builder matches = new PhotoList.Builder(this);
+        List<Pattern> scanPatterns = new ArrayList<>();
+        for (Pattern pat : patterns) {
+            RegexPrefix rp = RegexPrefix.of(pat.pattern());
+            if (rp.getPrefix().isEmpty()) {
+                scanPatterns.add(pat);
+                continue;
+            }
+            //
+            // Index values are trimmed too, but trimming the prefix would
+            // change what the pattern means: "Canon .*" mustn't match
+            // "Canonet". If the prefix has space that would be trimmed, we
+            // let the pattern decide.
+            String prefix = rp.getPrefix().toLowerCase(Locale.ROOT);
+            boolean caseOnly = TagKey.normalize(rp.getPrefix()).equals(prefix);
+            Predicate<String> filter;
+            if (caseOnly && rp.isLiteral()) {
+                filter = value -> value.equals(prefix);
+            } else if (caseOnly && rp.isPrefixOnly()) {
+                filter = value -> true;
+            } else {
+                filter = value -> pat.matcher(value).matches();
+            }
+            findTagged(tagName, prefix, rp.isLiteral(), filter, matches);
+        }
+        if (!scanPatterns.isEmpty()) {
+            scan(info -> {
+                String value = getTagValue(info, tagName);
+                if (value != null) {
+                    //
+                    // Match what the index would have, so that a pattern
+                    // finds the same photos whichever way it's answered.
+                    value = TagKey.normalize(value);
+                    for (Pattern pat : scanPatterns) {
+                        if (pat.matcher(value).matches()) {
+                            return info.getOrigPath();
+                        }
+                    }
+                }
+                return null;
+            }, matches::add);
+        }
+        return matches.build();
+    }
+
+    /**
+     * Finds photos whose normalized value for a tag starts with a prefix.
+     *
+     * @param tagName the name of the tag
+     * @param prefix the normalized prefix
+     * @param exact if true, only values equal to the prefix are wanted
+     * @param filter a further test for the normalized values
+     * @param matches where to put the original paths of the matching photos
+     */
+    private void findTagged(String tagName, String prefix, boolean exact, Predicate<String> filter, PhotoList.Builder matches) {
+        try (EntityCursor<TagKey> keys = tagPostings.keys(new TagKey(tagName, prefix, ""), true, null, false)) {
+            for (TagKey key : keys) {
+                if (!key.getTagName().equals(tagName)
+                        || !key.getValue().startsWith(prefix)
+                        || (exact && !key.getValue().equals(prefix))) {
+                    break;
+                }
+                if (filter.test(key.getValue())) {
+                    matches.add(key.getOrigPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets how many threads to use for scans of the whole DB.
+     *
+     * @param scanThreads the number of threads. One means that scans will be
+     * done on the calling thread.
+     */
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = Math.max(1, scanThreads);
+    }
+
+    /**
+     * Scans every photo in the DB. The photos are split into ranges of
+     * original paths that are scanned at the same time, each with its own
+     * cursor, and the results are passed to the consumer in order of original
+     * path on the calling thread.
+     *
+     * <p>
+     * Results for a range are held until all of the ranges before it have
+     * been consumed, so the function should filter out what isn't wanted.
+     *
+     * @param <R> the type of the results
+     * @param fn a function from a photo to a result, or to <code>null</code>
+     * if there's no result for that photo. This is called on several threads
+     * at once.
+     * @param consumer takes the results in order
+     */
+    public <R> void scan(Function<PhotoInfo, R> fn, Consumer<R> consumer) {
+        List<String> splits = scanThreads > 1 ? getSplitKeys(scanThreads * 4) : Collections.emptyList();
+        if (splits.isEmpty()) {
+            scanRange(null, null, fn, consumer);
+            return;
+        }
+        ForkJoinPool pool = getScanPool();
+        List<ForkJoinTask<List<R>>> tasks = new ArrayList<>();
+        for (int i = 0; i <= splits.size(); i++) {
+            String from = i == 0 ? null : splits.get(i - 1);
+            String to = i == splits.size() ? null : splits.get(i);
+            tasks.add(pool.submit(() -> {
+                List<R> results = new ArrayList<>();
+                scanRange(from, to, fn, results::add);
+                return results;
+            }));
+        }
+        try {
+            for (ForkJoinTask<List<R>> task : tasks) {
+                task.join().forEach(consumer);
+            }
+        } finally {
+            for (ForkJoinTask<List<R>> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Scans a range of photos.
+     *
+     * @param from the first original path in the range, or <code>null</code>
+     * to start at the beginning
+     * @param to the original path just after the range, or <code>null</code>
+     * to go to the end
+     */
+    private <R> void scanRange(String from, String to, Function<PhotoInfo, R> fn, Consumer<R> consumer) {
+        try (EntityCursor<PhotoInfo> infos = photoByOrigPath.entities(from, true, to, false)) {
+            for (PhotoInfo info : infos) {
+                R result = fn.apply(info);
+                if (result != null) {
+                    consumer.accept(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds original paths that split the DB into ranges with about the same
+     * number of photos in them. This skips along the keys without reading the
+     * photos, so it's much cheaper than a scan.
+     *
+     * @param nRanges the number of ranges that we'd like
+     * @return the first original path of each range after the first, in
+     * order. This is empty if the DB is too small to be worth splitting.
+     */
+    private List<String> getSplitKeys(int nRanges) {
+        List<String> splits = new ArrayList<>();
+        long step = Math.max(MIN_SCAN_RANGE, photoByOrigPath.count() / nRanges);
+        EntryBinding<String> keyBinding = photoByOrigPath.getKeyBinding();
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);
+        try (Cursor cursor = photoByOrigPath.getDatabase().openCursor(null, CursorConfig.READ_UNCOMMITTED)) {
+            if (cursor.getFirst(key, data, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS) {
+                return splits;
+            }
+            while (cursor.skipNext(step, key, data, LockMode.READ_UNCOMMITTED) == step) {
+                splits.add(keyBinding.entryToObject(key));
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * Gets the pool for scans, making a new one if the number of threads has
+     * changed since the last one was made. Scans that are running in the old
+     * pool are left to finish.
+     */
+    private synchronized ForkJoinPool getScanPool() {
+        if (scanPool != null && scanPool.getParallelism() != scanThreads) {
+            scanPool.shutdown();
+            scanPool = null;
+        }
+        if (scanPool == null) {
+            scanPool = new ForkJoinPool(scanThreads);
+        }
+        return scanPool;
+    }
+
+    /**
+     * Adds every photo to the tag index. This is needed for photos stored by
+     * older versions, and is harmless for the rest.
+     *
+     * @return the number of photos indexed
+     */
+    public int indexAllTags() {
+        return scanInBatches((txn, info) -> {
+            addPostings(txn, info);
+            return true;
+        }, false);
+    }
+
+    /**
+     * Runs an update over every photo in the DB, writing back the ones that
+     * the updater changes. The updates are done in a series of transactions
+     * so that we don't hold locks on the whole DB at once.
+     *
+     * @param updater returns true if it changed the photo that it was given
+     * @return the number of photos that were changed
+     */
+    public int updateAll(Predicate<PhotoInfo> updater) {
+        return scanInBatches((txn, info) -> updater.test(info), true);
+    }
+
+    /**
+     * Runs a function over every photo in the DB in a series of transactions.
+     *
+     * @param fn the function to run, which returns true if it did something to
+     * the photo
+     * @param update whether to write back photos that the function did
+     * something to
+     * @return the number of photos that the function did something to
+     */
+    private int scanInBatches(BiPredicate<Transaction, PhotoInfo> fn, boolean update) {
+        int batchSize = 1000;
+        int nDone = 0;
+        String lastKey = null;
+        boolean done = false;
+        while (!done) {
+            Transaction txn = env.beginTransaction(null, null);
+            try {
+                try (EntityCursor<PhotoInfo> cursor = photoByOrigPath.entities(txn, lastKey, false, null, false, null)) {
+                    int n = 0;
+                    PhotoInfo info;
+                    while (n < batchSize && (info = cursor.next()) != null) {
+                        if (fn.test(txn, info)) {
+                            if (update) {
+                                cursor.update(info);
+                            }
+                            nDone++;
+                        }
+                        lastKey = info.getOrigPath();
+                        n++;
+                    }
+                    done = n < batchSize;
+                }
+                txn.commit();
+            } finally {
+                if (txn.isValid()) {
+                    txn.abort();
+                }
+            }
+        }
+        return nDone;
+    }
+
+    /**
+     * Checks whether the DB is open for a bulk load.
+     *
+     * @return true if it is
+     */
+    public boolean isBulkLoad() {
+        return bulkLoadLock != null;
+    }
+
+    /**
+     * Writes everything loaded so far to disk. This does nothing unless
+     * we're bulk loading.
+     */
+    public void syncBulkLoad() {
+        if (bulkLoadLock != null) {
+            store.sync();
+        }
+    }
+
+    /**
+     * Finishes a bulk load: syncs the store, checkpoints the environment and
+     * reopens the DB as usual. Indexes got from the DB before this are no
+     * longer open. This does nothing unless we're bulk loading.
+     *
+     * @throws IOException if the lock file can't be removed
+     */
+    public synchronized void finishBulkLoad() throws IOException {
+        if (bulkLoadLock == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        closeBulkLoad();
+        init();
+        logger.info(String.format("Finished bulk load of %,d photos in %,d ms",
+                photoByOrigPath.count(), System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Syncs, checkpoints and closes a store that's being bulk loaded, then
+     * releases the lock.
+     */
+    private void closeBulkLoad() throws IOException {
+        store.sync();
+        CheckpointConfig force = new CheckpointConfig();
+        force.setForce(true);
+        env.checkpoint(force);
+        store.close();
+        env.close();
+        bulkLoadLock.close();
+        bulkLoadLock = null;
+    }
+
     public Path getPhotoPath() {
         return photoPath;
     }
@@ -76,6 +837,15 @@ public class PhotoDB implements Closeable {
 
     @Override
     public void close() throws IOException {
+        synchronized (this) {
+            if (scanPool != null) {
+                scanPool.shutdownNow();
+            }
+            if (bulkLoadLock != null) {
+                closeBulkLoad();
+                return;
+            }
+        }
         store.close();
         env.close();
     }
@@ -92,6 +862,15 @@ public class PhotoDB implements Closeable {
         Path photoDBPath
                 = outputPath.resolve("photo.db");
 
+        //
+        // "recover" as the second argument opens a DB whose bulk load was
+        // interrupted.
+        if (args.length > 1 && args[1].equalsIgnoreCase("recover")) {
+            if (recoverBulkLoad(photoDBPath)) {
+                logger.info(String.format("Recovered %s, collect again to pick up the photos that are missing", photoDBPath));
+            }
+        }
+
         try (PhotoDB photoDB = new PhotoDB(photoDBPath)) {
 
             ListCommands listCommands = new ListCommands(photoDB);
@@ -0,0 +1,529 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.PhotoInfo;
+import com.eelstretching.photo.persist.SavedList;
+import com.sleepycat.bind.EntityBinding;
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A list of photos, kept as the sorted, packed primary keys of the photos so
+ * that a list takes about as much memory as the paths in it. The keys are
+ * stored in the same encoding that the DB uses, so they sort the way that the
+ * DB does and photos can be looked up without encoding the keys again.
+ *
+ * <p>
+ * The photos themselves are only read from the DB when they're iterated,
+ * using {@link #photos()}.
+ */
+public class PhotoList {
+
+    private final PhotoDB photoDB;
+
+    /**
+     * The encoded keys, one after another.
+     */
+    private final byte[] keys;
+
+    /**
+     * Where each key starts in {@link #keys}, with an extra entry for the end
+     * of the last key.
+     */
+    private final int[] offsets;
+
+    /**
+     * Whether some of the photos in the list have been deleted since it was
+     * made.
+     */
+    private volatile boolean stale;
+
+    private PhotoList(PhotoDB photoDB, byte[] keys, int[] offsets) {
+        this.photoDB = photoDB;
+        this.keys = keys;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Gets an empty list.
+     *
+     * @param photoDB the DB that the list is for
+     * @return an empty list
+     */
+    public static PhotoList empty(PhotoDB photoDB) {
+        return new PhotoList(photoDB, new byte[0], new int[1]);
+    }
+
+    /**
+     * Makes a list from a saved list.
+     *
+     * @param photoDB the DB that the list is for
+     * @param saved the saved list
+     * @return the list
+     */
+    public static PhotoList fromSaved(PhotoDB photoDB, SavedList saved) {
+        PhotoList list = new PhotoList(photoDB, saved.getKeys(), saved.getOffsets());
+        list.stale = saved.isStale();
+        return list;
+    }
+
+    /**
+     * Makes a saved list from this list.
+     *
+     * @param name the name to save the list under
+     * @return the saved list
+     */
+    public SavedList toSaved(String name) {
+        return new SavedList(name, keys, offsets, stale);
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void setStale(boolean stale) {
+        this.stale = stale;
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets the number of bytes used by the keys in this list.
+     *
+     * @return the size of the keys in bytes
+     */
+    public int getKeyBytes() {
+        return keys.length;
+    }
+
+    /**
+     * Gets the original path at a position in the list.
+     *
+     * @param i the position
+     * @return the original path
+     */
+    public String getKey(int i) {
+        return photoDB.photoByOrigPath.getKeyBinding().entryToObject(entry(i));
+    }
+
+    /**
+     * Checks whether a photo is in the list.
+     *
+     * @param origPath the original path of the photo
+     * @return true if the photo is in the list
+     */
+    public boolean contains(String origPath) {
+        DatabaseEntry key = new DatabaseEntry();
+        photoDB.photoByOrigPath.getKeyBinding().objectToEntry(origPath, key);
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(keys, offsets[mid], offsets[mid + 1], key.getData(), key.getOffset(), key.getOffset() + key.getSize());
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the original paths in the list, in order.
+     *
+     * @return the original paths
+     */
+    public Iterable<String> keys() {
+        return () -> new Iterator<String>() {
+            int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < size();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getKey(i++);
+            }
+        };
+    }
+
+    /**
+     * Gets the photos in the list, in order. The photos are read from the DB
+     * as they're iterated, and photos that have been deleted from the DB
+     * since the list was made are skipped.
+     *
+     * @return the photos, which must be closed when we're done with them
+     */
+    public Photos photos() {
+        return new Photos();
+    }
+
+    /**
+     * Makes the union of some lists, merging them in one pass.
+     *
+     * @param photoDB the DB that the lists are for
+     * @param lists the lists
+     * @return the photos that are in any of the lists
+     */
+    public static PhotoList union(PhotoDB photoDB, List<PhotoList> lists) {
+        Builder builder = new Builder(photoDB);
+        int[] pos = new int[lists.size()];
+        while (true) {
+            int min = -1;
+            for (int l = 0; l < lists.size(); l++) {
+                if (pos[l] < lists.get(l).size()
+                        && (min < 0 || lists.get(l).compare(pos[l], lists.get(min), pos[min]) < 0)) {
+                    min = l;
+                }
+            }
+            if (min < 0) {
+                return builder.build();
+            }
+            PhotoList minList = lists.get(min);
+            int minPos = pos[min];
+            builder.add(minList, minPos);
+            for (int l = 0; l < lists.size(); l++) {
+                if (pos[l] < lists.get(l).size() && lists.get(l).compare(pos[l], minList, minPos) == 0) {
+                    pos[l]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the intersection of some lists in one pass over each of them.
+     *
+     * @param photoDB the DB that the lists are for
+     * @param lists the lists
+     * @return the photos that are in all of the lists
+     * @throws IllegalArgumentException if there are no lists, since we can't
+     * make the list of every photo that way
+     */
+    public static PhotoList intersect(PhotoDB photoDB, List<PhotoList> lists) {
+        if (lists.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to intersect");
+        }
+        Builder builder = new Builder(photoDB);
+        //
+        // Drive the merge from the shortest list.
+        List<PhotoList> sorted = new ArrayList<>(lists);
+        sorted.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        PhotoList first = sorted.get(0);
+        int[] pos = new int[sorted.size()];
+        keyLoop:
+        for (int i = 0; i < first.size(); i++) {
+            for (int l = 1; l < sorted.size(); l++) {
+                PhotoList other = sorted.get(l);
+                while (pos[l] < other.size() && other.compare(pos[l], first, i) < 0) {
+                    pos[l]++;
+                }
+                if (pos[l] == other.size()) {
+                    break keyLoop;
+                }
+                if (other.compare(pos[l], first, i) != 0) {
+                    continue keyLoop;
+                }
+            }
+            builder.add(first, i);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Takes the photos in some lists out of another list, in one pass over
+     * each of them.
+     *
+     * @param photoDB the DB that the lists are for
+     * @param from the list to take photos out of
+     * @param except the lists of photos to take out
+     * @return the photos in the first list that aren't in any of the others
+     */
+    public static PhotoList difference(PhotoDB photoDB, PhotoList from, List<PhotoList> except) {
+        Builder builder = new Builder(photoDB);
+        int[] pos = new int[except.size()];
+        keyLoop:
+        for (int i = 0; i < from.size(); i++) {
+            for (int l = 0; l < except.size(); l++) {
+                PhotoList other = except.get(l);
+                while (pos[l] < other.size() && other.compare(pos[l], from, i) < 0) {
+                    pos[l]++;
+                }
+                if (pos[l] < other.size() && other.compare(pos[l], from, i) == 0) {
+                    continue keyLoop;
+                }
+            }
+            builder.add(from, i);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Checks whether two lists have any photos in common, stopping at the
+     * first one that they do.
+     *
+     * @param a one list
+     * @param b the other list
+     * @return true if there's a photo in both lists
+     */
+    public static boolean overlaps(PhotoList a, PhotoList b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            int cmp = a.compare(i, b, j);
+            if (cmp == 0) {
+                return true;
+            }
+            if (cmp < 0) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares the key at a position in this list with the key at a position
+     * in another list.
+     */
+    int compare(int i, PhotoList other, int j) {
+        return compare(keys, offsets[i], offsets[i + 1], other.keys, other.offsets[j], other.offsets[j + 1]);
+    }
+
+    private DatabaseEntry entry(int i) {
+        return new DatabaseEntry(keys, offsets[i], offsets[i + 1] - offsets[i]);
+    }
+
+    /**
+     * Compares two encoded keys as unsigned bytes, which is the order that
+     * the DB keeps them in.
+     */
+    private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        int n = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int k = 0; k < n; k++) {
+            int diff = (a[aStart + k] & 0xff) - (b[bStart + k] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    /**
+     * The photos in a list, read from the DB with a single cursor. Reads
+     * don't take locks, so photos can be deleted while we're iterating.
+     */
+    public class Photos implements Iterable<PhotoInfo>, Closeable {
+
+        private final Cursor cursor;
+
+        private Photos() {
+            cursor = photoDB.photoByOrigPath.getDatabase().openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        }
+
+        @Override
+        public Iterator<PhotoInfo> iterator() {
+            EntityBinding<PhotoInfo> entityBinding = photoDB.photoByOrigPath.getEntityBinding();
+            return new Iterator<PhotoInfo>() {
+
+                int i;
+
+                PhotoInfo next = advance();
+
+                private PhotoInfo advance() {
+                    DatabaseEntry data = new DatabaseEntry();
+                    while (i < size()) {
+                        DatabaseEntry key = entry(i++);
+                        if (cursor.getSearchKey(key, data, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+                            return entityBinding.entryToObject(key, data);
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public PhotoInfo next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    PhotoInfo ret = next;
+                    next = advance();
+                    return ret;
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds a list of photos. Keys can be added in any order, and duplicates
+     * are dropped, but adding them in order saves a sort at the end.
+     */
+    public static class Builder {
+
+        private final PhotoDB photoDB;
+
+        private final EntryBinding<String> keyBinding;
+
+        private final DatabaseEntry entry = new DatabaseEntry();
+
+        private byte[] keys = new byte[1024];
+
+        private int[] offsets = new int[64];
+
+        private int n;
+
+        private boolean sorted = true;
+
+        public Builder(PhotoDB photoDB) {
+            this.photoDB = photoDB;
+            keyBinding = photoDB.photoByOrigPath.getKeyBinding();
+        }
+
+        /**
+         * Adds a photo to the list.
+         *
+         * @param origPath the original path of the photo
+         * @return this builder
+         */
+        public Builder add(String origPath) {
+            keyBinding.objectToEntry(origPath, entry);
+            add(entry.getData(), entry.getOffset(), entry.getSize());
+            return this;
+        }
+
+        /**
+         * Adds the key at a position in another list.
+         */
+        Builder add(PhotoList list, int i) {
+            add(list.keys, list.offsets[i], list.offsets[i + 1] - list.offsets[i]);
+            return this;
+        }
+
+        private void add(byte[] key, int off, int len) {
+            if (n + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            int start = offsets[n];
+            if (start + len > keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(keys.length * 2, start + len));
+            }
+            System.arraycopy(key, off, keys, start, len);
+            offsets[n + 1] = start + len;
+            if (sorted && n > 0) {
+                int cmp = compare(keys, offsets[n - 1], start, keys, start, start + len);
+                if (cmp == 0) {
+                    //
+                    // The same as the last one.
+                    return;
+                }
+                sorted = cmp < 0;
+            }
+            n++;
+        }
+
+        public int size() {
+            return n;
+        }
+
+        /**
+         * Builds the list, sorting the keys if they weren't added in order.
+         *
+         * @return the list
+         */
+        public PhotoList build() {
+            if (sorted) {
+                return new PhotoList(photoDB, Arrays.copyOf(keys, offsets[n]), Arrays.copyOf(offsets, n + 1));
+            }
+            int[] order = sortedOrder();
+            byte[] sortedKeys = new byte[offsets[n]];
+            int[] sortedOffsets = new int[n + 1];
+            int m = 0;
+            int last = -1;
+            for (int i : order) {
+                if (last >= 0 && compare(keys, offsets[last], offsets[last + 1], keys, offsets[i], offsets[i + 1]) == 0) {
+                    continue;
+                }
+                int len = offsets[i + 1] - offsets[i];
+                System.arraycopy(keys, offsets[i], sortedKeys, sortedOffsets[m], len);
+                sortedOffsets[m + 1] = sortedOffsets[m] + len;
+                m++;
+                last = i;
+            }
+            return new PhotoList(photoDB, Arrays.copyOf(sortedKeys, sortedOffsets[m]), Arrays.copyOf(sortedOffsets, m + 1));
+        }
+
+        /**
+         * Sorts the positions of the keys by key, with a merge sort on arrays
+         * of ints, so that the sort takes 8 bytes a key rather than a boxed
+         * Integer for each one.
+         *
+         * @return the positions in order of their keys
+         */
+        private int[] sortedOrder() {
+            int[] from = new int[n];
+            for (int i = 0; i < n; i++) {
+                from[i] = i;
+            }
+            int[] to = new int[n];
+            for (int width = 1; width < n; width *= 2) {
+                for (int lo = 0; lo < n; lo += 2 * width) {
+                    int mid = Math.min(lo + width, n);
+                    int hi = Math.min(lo + 2 * width, n);
+                    int i = lo;
+                    int j = mid;
+                    int k = lo;
+                    while (i < mid && j < hi) {
+                        to[k++] = compareAt(from[j], from[i]) < 0 ? from[j++] : from[i++];
+                    }
+                    while (i < mid) {
+                        to[k++] = from[i++];
+                    }
+                    while (j < hi) {
+                        to[k++] = from[j++];
+                    }
+                }
+                int[] t = from;
+                from = to;
+                to = t;
+            }
+            return from;
+        }
+
+        private int compareAt(int a, int b) {
+            return compare(keys, offsets[a], offsets[a + 1], keys, offsets[b], offsets[b + 1]);
+        }
+    }
+}
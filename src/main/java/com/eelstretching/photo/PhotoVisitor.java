@@ -7,34 +7,69 @@ import com.drew.metadata.Metadata;
 import com.drew.metadata.avi.AviDirectory;
 import com.drew.metadata.exif.ExifIFD0Directory;
 import com.drew.metadata.mov.QuickTimeDirectory;
+import com.eelstretching.photo.IngestMetrics.Stage;
+import com.eelstretching.photo.persist.ContentHash;
 import com.eelstretching.photo.persist.PhotoInfo;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.persist.EntityCursor;
 import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
- * A visitor for photos.
+ * A visitor for photos. Files are processed on the walking thread, one at a
+ * time, or on each of the walking threads when there's more than one.
+ * Subclasses can override {@link #handleFile} to process files somewhere
+ * else, as long as they use {@link #collectFile} and
+ * {@link #store(PhotoInfo)} to do the work.
+ *
+ * <p>
+ * By default, files that are already in the DB are skipped. In incremental
+ * mode, files whose size, modification time or file key have changed since
+ * they were collected are collected again. In overwrite mode, every file is
+ * collected again.
+ *
+ * <p>
+ * Photos are stored in batched transactions, so the visitor must be closed
+ * when the walk is done to store the last batch. Lookups read uncommitted data
+ * so that they see, and don't wait for, photos in the current batch.
+ *
+ * <p>
+ * The time spent in each stage of collecting a file is recorded in the
+ * visitor's {@link IngestMetrics}, which also logs progress.
  */
-public class PhotoVisitor implements FileVisitor<Path> {
+public class PhotoVisitor implements FileVisitor<Path>, Closeable {
 
     private static final Logger logger = Logger.getLogger(PhotoVisitor.class.getName());
 
-    private final Set<String> extensions = new HashSet<>(
+    private static final Set<String> EXTENSIONS = new HashSet<>(
             Arrays.asList("jpg", "jpeg", "heic", "mov", "avi")
     );
 
@@ -43,35 +78,283 @@ public class PhotoVisitor implements FileVisitor<Path> {
         ExifIFD0Directory.TAG_DATETIME_DIGITIZED,
         ExifIFD0Directory.TAG_DATETIME_ORIGINAL};
 
+    /**
+     * The false positive rate that the filter of original paths is sized for.
+     */
+    private static final double PATH_FILTER_FPP = 0.01;
+
+    /**
+     * How many bytes from each end of a file go into its fingerprint.
+     */
+    public static final int FINGERPRINT_BYTES = 64 * 1024;
+
     private Path outputPath;
 
+    private PhotoDB photoDB;
+
     private PrimaryIndex<String, PhotoInfo> photoByOrigPath;
 
-    private MessageDigest md5 = null;
+    private SecondaryIndex<String, String, PhotoInfo> photoByContentHash;
+
+    private SecondaryIndex<String, String, PhotoInfo> photoByFingerprint;
+
+    /**
+     * Fingerprints of files that are being collected but haven't been stored
+     * yet, each with the result of collecting the first file that had it.
+     * Other files with the fingerprint wait for that result, so that they can
+     * find the first file's contents. Only the first file's info removes the
+     * fingerprint, when it's stored.
+     */
+    private final ConcurrentMap<String, CompletableFuture<PhotoInfo>> pendingFingerprints = new ConcurrentHashMap<>();
+
+    /**
+     * Whether we've checked the DB for photos stored without fingerprints.
+     */
+    private final AtomicBoolean checkedFingerprints = new AtomicBoolean();
+
+    /**
+     * Content hashes of files that have been copied but not stored yet, mapped
+     * to where they were copied, so that we don't make two copies of the same
+     * contents while the first one is on its way to the DB.
+     */
+    private final ConcurrentMap<String, String> pendingContents = new ConcurrentHashMap<>();
 
-    private byte[] buffer = new byte[10 * 1024 * 1024];
+    /**
+     * The infos that photos collected again because their contents changed
+     * are replacing, by original path, until the new infos are stored.
+     */
+    private final ConcurrentMap<String, PhotoInfo> replacing = new ConcurrentHashMap<>();
+
+    /**
+     * The old infos of changed photos that have been stored but not
+     * committed. Their library copies are deleted once the batch that
+     * replaced them commits, unless another photo is an alias of the copy.
+     */
+    private final List<PhotoInfo> replaced = new ArrayList<>();
+
+    private int copiesDeleted;
+
+    /**
+     * Digests and copiers are per-thread so that files can be collected by
+     * more than one thread at a time.
+     */
+    private final ThreadLocal<Map<ContentHash, MessageDigest>> digests = ThreadLocal.withInitial(() -> new EnumMap<>(ContentHash.class));
+
+    /**
+     * What new contents are hashed with.
+     */
+    private ContentHash contentHash = ContentHash.MURMUR3_128;
+
+    private final ThreadLocal<FileCopier> copier = ThreadLocal.withInitial(FileCopier::new);
 
     boolean overwrite;
 
-    private int dirsVisited;
+    boolean incremental;
+
+    private final AtomicInteger dirsVisited = new AtomicInteger();
+
+    private final AtomicInteger filesVisited = new AtomicInteger();
+
+    private final AtomicInteger filesCopied = new AtomicInteger();
+
+    private final AtomicLong bytesCopied = new AtomicLong();
+
+    private final AtomicInteger filesAliased = new AtomicInteger();
+
+    private final AtomicInteger filesAdopted = new AtomicInteger();
+
+    private final AtomicInteger filesHashed = new AtomicInteger();
+
+    /**
+     * The original paths that are in the DB, so that we only look up the
+     * ones that might be. It's built the first time it's needed. It's set
+     * before the paths in the DB are read into it, so that photos stored
+     * while it's being built are added too, but it's only used for lookups
+     * once it's ready.
+     */
+    private volatile BloomFilter pathFilter;
+
+    private volatile boolean pathFilterReady;
+
+    private final AtomicLong pathsFiltered = new AtomicLong();
+
+    private final AtomicLong pathFalsePositives = new AtomicLong();
+
+    private int filesStored;
+
+    private int filesSkipped;
 
-    private int filesVisited;
+    private int batchSize = 500;
 
-    private int filesCopied;
+    private long batchMillis = 1000;
 
-    private long bytesCopied;
+    private BatchWriter.Durability durability = BatchWriter.Durability.SYNC;
 
-    public PhotoVisitor(Path outputPath, PrimaryIndex<String, PhotoInfo> photoByOrigPath, boolean overwrite) {
+    private BatchWriter writer;
+
+    private IngestMetrics metrics = new IngestMetrics();
+
+    /**
+     * How many threads walk each tree.
+     */
+    private int walkThreads = 1;
+
+    private ParallelWalker walker;
+
+    /**
+     * Serializes stores when more than one thread is walking.
+     */
+    private final Object storeLock = new Object();
+
+    /**
+     * When each walking thread last left the visitor, so that we can tell how
+     * long the walk took to get to the next file.
+     */
+    private final ThreadLocal<long[]> lastVisitEnd = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * The names that are taken in the library.
+     */
+    private final OutputNameRegistry outputNames;
+
+    public PhotoVisitor(Path outputPath, PhotoDB photoDB, boolean overwrite) {
         this.outputPath = outputPath;
-        this.photoByOrigPath = photoByOrigPath;
-        try {
-            md5 = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException ex) {
-            logger.log(Level.SEVERE, String.format("No MD5? Hmmm"), ex);
+        this.overwrite = overwrite;
+        this.photoDB = photoDB;
+        this.photoByOrigPath = photoDB.photoByOrigPath;
+        this.photoByContentHash = photoDB.photoByContentHash;
+        this.photoByFingerprint = photoDB.photoByFingerprint;
+        this.outputNames = new OutputNameRegistry(photoDB);
+    }
+
+    /**
+     * Sets whether files that are already in the DB should be collected again
+     * if they have changed since they were collected.
+     *
+     * @param incremental whether to collect changed files
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets how photos are batched when they're stored. This must be called
+     * before any photos are stored.
+     *
+     * @param batchSize the most photos to store in one transaction
+     * @param batchMillis the longest to keep a transaction open, in
+     * milliseconds
+     * @param durability how durable commits should be
+     */
+    public void setBatching(int batchSize, long batchMillis, BatchWriter.Durability durability) {
+        this.batchSize = batchSize;
+        this.batchMillis = batchMillis;
+        this.durability = durability;
+    }
+
+    /**
+     * Sets the metrics to record stages in. This must be called before the
+     * walk starts.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets what to hash new contents with. Contents are always compared with
+     * photos in the DB using the hash that those photos were stored with, so
+     * this can be changed for a library that has photos in it. This must be
+     * called before the walk starts.
+     *
+     * @param contentHash the hash to use
+     */
+    public void setContentHash(ContentHash contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Sets how many threads walk each tree. With more than one, trees are
+     * walked with a {@link ParallelWalker}, and only files with the
+     * extensions that we collect are visited. This must be called before the
+     * walk starts.
+     *
+     * @param walkThreads the number of threads
+     */
+    public void setWalkThreads(int walkThreads) {
+        this.walkThreads = Math.max(1, walkThreads);
+    }
+
+    public int getWalkThreads() {
+        return walkThreads;
+    }
+
+    /**
+     * Decides which files the walk threads hand to
+     * {@link #visitFile(Path, BasicFileAttributes)}. The files that we don't
+     * want are counted as visited here, as visitFile would count them, so
+     * that the report is the same however the tree is walked.
+     *
+     * @param file the file
+     * @return true if the file should be visited
+     */
+    protected boolean acceptWalkedFile(Path file) {
+        if (isPhotoFile(file)) {
+            return true;
         }
+        filesVisited.incrementAndGet();
+        return false;
     }
 
-    private String getExtension(Path file) {
+    /**
+     * Checks whether a file has one of the extensions that we collect.
+     *
+     * @param file the file
+     * @return true if we should collect the file
+     */
+    public static boolean isPhotoFile(Path file) {
+        return EXTENSIONS.contains(getExtension(file.getFileName()).toLowerCase());
+    }
+
+    /**
+     * Walks a tree of files with this visitor. This implementation waits for
+     * the walk, which is done on the calling thread, or by the walk threads
+     * if there are more than one, but subclasses may walk it somewhere else
+     * and return before it's done, in which case {@link #awaitWalks()} waits
+     * for it.
+     *
+     * @param root the root of the tree
+     * @throws IOException if there is an error walking the tree
+     */
+    public void walk(Path root) throws IOException {
+        if (walkThreads > 1) {
+            getWalker().walk(root, this);
+        } else {
+            Files.walkFileTree(root, this);
+        }
+    }
+
+    private synchronized ParallelWalker getWalker() {
+        if (walker == null) {
+            walker = new ParallelWalker("walk", walkThreads, this::acceptWalkedFile);
+        }
+        return walker;
+    }
+
+    /**
+     * Waits for any walks that are running on other threads to finish.
+     *
+     * @throws IOException if there was an error walking a tree
+     */
+    public void awaitWalks() throws IOException {
+    }
+
+    private static String getExtension(Path file) {
         String fn = file.getFileName().toString();
         int ind = fn.lastIndexOf('.');
         if (ind >= 0 && ind < fn.length() - 1) {
@@ -80,25 +363,56 @@ public class PhotoVisitor implements FileVisitor<Path> {
         return "";
     }
 
-    private byte[] copyAndMD5(Path origPath, Path finalPath) throws IOException {
-        md5.reset();
-        readLoop:
-        try (InputStream is = Files.newInputStream(origPath)) {
-            try (OutputStream os = Files.newOutputStream(finalPath)) {
-                DigestInputStream dis = new DigestInputStream(is, md5);
-                int n = dis.read(buffer);
-                if (n < 0) {
-                    break readLoop;
-                }
-                os.write(buffer, 0, n);
-            }
+    /**
+     * Gets this thread's digest for a hash, ready to use.
+     */
+    private MessageDigest digest(ContentHash algorithm) {
+        MessageDigest md = digests.get().computeIfAbsent(algorithm, FileCopier::newDigest);
+        md.reset();
+        return md;
+    }
+
+    private byte[] hash(Path origPath, ContentHash algorithm) throws IOException {
+        MessageDigest md = digest(algorithm);
+        long start = IngestMetrics.start();
+        long n = copier.get().hash(origPath, md);
+        metrics.record(Stage.HASH, start, n);
+        return md.digest();
+    }
+
+    /**
+     * Checks whether a file still has the contents that it had when it was
+     * last collected.
+     */
+    private boolean sameContents(Path file, PhotoInfo previous) throws IOException {
+        if (!fingerprint(file).equals(previous.getFingerprint())) {
+            return false;
         }
-        return md5.digest();
+        filesHashed.incrementAndGet();
+        return Arrays.equals(hash(file, previous.getHashAlgorithm()), previous.getHash());
+    }
+
+    private String fingerprint(Path origPath) throws IOException {
+        MessageDigest md5 = digest(ContentHash.MD5);
+        long start = IngestMetrics.start();
+        long size = copier.get().hashEnds(origPath, FINGERPRINT_BYTES, md5);
+        metrics.record(Stage.HASH, start, Math.min(size, 2L * FINGERPRINT_BYTES));
+        return PhotoInfo.makeFingerprint(size, md5.digest());
+    }
+
+    private byte[] copyAndHash(Path origPath, Path finalPath) throws IOException {
+        MessageDigest md = digest(contentHash);
+        long start = IngestMetrics.start();
+        long n = copier.get().copy(origPath, finalPath, md);
+        metrics.record(Stage.COPY, start, n);
+        return md.digest();
     }
 
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-        dirsVisited++;
+        recordWalk();
+        dirsVisited.incrementAndGet();
+        lastVisitEnd.get()[0] = IngestMetrics.start();
         //
         // Let's not crawl the directory where we're copying stuff!
         if (dir.equals(outputPath)) {
@@ -109,84 +423,591 @@ public class PhotoVisitor implements FileVisitor<Path> {
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        filesVisited++;
-        if (!overwrite && photoByOrigPath.contains(file.toString())) {
+        recordWalk();
+        filesVisited.incrementAndGet();
+        try {
+            if (!isPhotoFile(file)) {
+                return FileVisitResult.CONTINUE;
+            }
+            PhotoInfo previous = null;
+            if (!overwrite) {
+                long start = IngestMetrics.start();
+                String origPath = file.toString();
+                boolean skip = false;
+                if (!getPathFilter().mightContain(origPath)) {
+                    pathsFiltered.incrementAndGet();
+                } else if (incremental) {
+                    previous = photoByOrigPath.get(null, origPath, LockMode.READ_UNCOMMITTED);
+                    skip = previous != null && !previous.sourceChanged(attrs);
+                    if (previous == null) {
+                        pathFalsePositives.incrementAndGet();
+                    }
+                } else {
+                    skip = photoByOrigPath.contains(null, origPath, LockMode.READ_UNCOMMITTED);
+                    if (!skip) {
+                        pathFalsePositives.incrementAndGet();
+                    }
+                }
+                metrics.record(Stage.LOOKUP, start);
+                if (skip) {
+                    return FileVisitResult.CONTINUE;
+                }
+            }
+            metrics.fileFound();
+            handleFile(file, attrs, previous);
             return FileVisitResult.CONTINUE;
+        } finally {
+            lastVisitEnd.get()[0] = IngestMetrics.start();
         }
-        if (extensions.contains(getExtension(file.getFileName()).toLowerCase())) {
-            try {
-                Date photoDate = null;
-                Metadata metadata = ImageMetadataReader.readMetadata(file.toFile());
-                Directory dataDir = null;
-                dirLoop:
-                for (Directory dir : metadata.getDirectories()) {
-                    if (dir instanceof ExifIFD0Directory) {
-                        for (int exifTag : exifTags) {
-                            photoDate = dir.getDate(exifTag);
-                            if (photoDate != null) {
-                                dataDir = dir;
-                                break dirLoop;
-                            }
-                        }
-                        break;
-                    } else if (dir instanceof QuickTimeDirectory) {
-                        photoDate = dir.getDate(QuickTimeDirectory.TAG_CREATION_TIME);
-                        dataDir = dir;
-                        break;
-                    } else if (dir instanceof AviDirectory) {
-                        photoDate = dir.getDate(AviDirectory.TAG_DATETIME_ORIGINAL);
-                        dataDir = dir;
-                        break;
+    }
+
+    /**
+     * Gets the filter of original paths, reading every original path in the
+     * DB into it with a key-only cursor if it hasn't been built yet. It's
+     * sized for half again as many paths as there are now, to leave room
+     * for the ones that we collect.
+     *
+     * <p>
+     * Other threads may be storing photos while we read. A photo stored
+     * before the filter is set is in the DB when the cursor gets there, and
+     * one stored after is added by {@link #store}, so none are missed.
+     */
+    private BloomFilter getPathFilter() {
+        if (pathFilterReady) {
+            return pathFilter;
+        }
+        synchronized (this) {
+            if (!pathFilterReady) {
+                long start = System.currentTimeMillis();
+                long count = photoByOrigPath.count();
+                BloomFilter filter = new BloomFilter(Math.max(count + count / 2, 1 << 20), PATH_FILTER_FPP);
+                pathFilter = filter;
+                try (EntityCursor<String> paths = photoByOrigPath.keys(null, CursorConfig.READ_UNCOMMITTED)) {
+                    for (String path : paths) {
+                        filter.add(path);
                     }
                 }
-                if (photoDate != null) {
-                    Path fileDir = outputPath
-                            .resolve(String.format("%tY", photoDate))
-                            .resolve(String.format("%tm", photoDate))
-                            .resolve(String.format("%td", photoDate));
-                    if (!Files.exists(fileDir)) {
-                        Files.createDirectories(fileDir);
-                    }
-                    Path filePath = fileDir.resolve(file.getFileName());
-                    if (Files.exists(filePath)) {
-                        String namePart = file.getFileName().toString();
-                        String ext = "";
-                        int ind = namePart.indexOf('.');
-                        if (ind >= 0) {
-                            if (ind < namePart.length() - 1) {
-                                ext = namePart.substring(ind + 1);
-                                namePart = namePart.substring(0, ind);
-                            }
-                        }
-                        //
-                        // Keep adding numbers until we don't have a duplicate any more.
-                        int n = 1;
-                        while (Files.exists(filePath)) {
-                            filePath = fileDir.resolve(String.format("%s-%04d.%s", namePart, n++, ext));
+                logger.info(String.format("Read %,d original paths into a %,d KB filter in %,d ms",
+                        filter.getAdded(), filter.getMemoryBytes() / 1024, System.currentTimeMillis() - start));
+                pathFilterReady = true;
+            }
+            return pathFilter;
+        }
+    }
+
+    /**
+     * Records the time the walk took to get from the last file or directory
+     * to this one.
+     */
+    private void recordWalk() {
+        long last = lastVisitEnd.get()[0];
+        if (last != 0) {
+            metrics.record(Stage.WALK, last);
+        }
+    }
+
+    /**
+     * Handles a photo file that we want in the collection. This
+     * implementation collects and stores the file on the calling thread.
+     *
+     * @param file the file to handle
+     * @param attrs the attributes of the file
+     * @param previous the info stored when the file was last collected, if
+     * it's being collected again because it changed.
+     * @throws IOException if there is an error handling the file
+     */
+    protected void handleFile(Path file, BasicFileAttributes attrs, PhotoInfo previous) throws IOException {
+        PhotoInfo info = collectFile(file, attrs, previous);
+        if (info != null) {
+            synchronized (storeLock) {
+                store(info);
+            }
+        }
+    }
+
+    /**
+     * Reads the metadata for a file and copies it into the right place in the
+     * output directory. This is safe to call from multiple threads.
+     *
+     * @param file the file to collect
+     * @param attrs the attributes of the file
+     * @param previous the info stored when the file was last collected, or
+     * <code>null</code> if it wasn't.
+     * @return the information for the collected photo, or <code>null</code> if
+     * the file could not be collected.
+     */
+    protected PhotoInfo collectFile(Path file, BasicFileAttributes attrs, PhotoInfo previous) {
+        PhotoInfo info = collectFile(file, previous);
+        if (info != null) {
+            info.setSource(attrs);
+            if (previous != null && info != previous && previous.getFinalPath() != null) {
+                replacing.put(file.toString(), previous);
+            }
+        }
+        metrics.fileDone(attrs.size());
+        metrics.maybeLogProgress();
+        return info;
+    }
+
+    private PhotoInfo collectFile(Path file, PhotoInfo previous) {
+        try {
+            if (previous != null && previous.getFinalPath() != null && sameContents(file, previous)) {
+                //
+                // Only the attributes changed, so the copy we have is fine.
+                return previous;
+            }
+            if (previous != null) {
+                logger.info(String.format("Collecting changed file %s", file));
+            }
+            Date photoDate = null;
+            long start = IngestMetrics.start();
+            Metadata metadata = ImageMetadataReader.readMetadata(file.toFile());
+            metrics.record(Stage.METADATA, start);
+            Directory dataDir = null;
+            dirLoop:
+            for (Directory dir : metadata.getDirectories()) {
+                if (dir instanceof ExifIFD0Directory) {
+                    for (int exifTag : exifTags) {
+                        photoDate = dir.getDate(exifTag);
+                        if (photoDate != null) {
+                            dataDir = dir;
+                            break dirLoop;
                         }
                     }
+                    break;
+                } else if (dir instanceof QuickTimeDirectory) {
+                    photoDate = dir.getDate(QuickTimeDirectory.TAG_CREATION_TIME);
+                    dataDir = dir;
+                    break;
+                } else if (dir instanceof AviDirectory) {
+                    photoDate = dir.getDate(AviDirectory.TAG_DATETIME_ORIGINAL);
+                    dataDir = dir;
+                    break;
+                }
+            }
+            if (photoDate != null) {
+                //
+                // If nothing in the library has the same fingerprint, then
+                // nothing can have the same contents and we can copy the file
+                // without reading it first.
+                checkFingerprints();
+                String fingerprint = fingerprint(file);
+                CompletableFuture<PhotoInfo> mine = new CompletableFuture<>();
+                CompletableFuture<PhotoInfo> first = pendingFingerprints.putIfAbsent(fingerprint, mine);
+                if (first != null) {
                     //
-                    // Copy.
-                    byte[] hash = copyAndMD5(file, filePath);
-                    filesCopied++;
-                    bytesCopied += file.toFile().length();
-                    PhotoInfo info = new PhotoInfo(file, filePath, dataDir, hash);
-                    photoByOrigPath.put(info);
-                    if (filesCopied % 100 == 0) {
-                        logger.info(getReport());
+                    // Another file with this fingerprint is on its way in, so
+                    // wait until its contents can be found.
+                    awaitFirst(first);
+                }
+                try {
+                    boolean candidate = first != null;
+                    if (!candidate) {
+                        start = IngestMetrics.start();
+                        candidate = photoByFingerprint.contains(null, fingerprint, LockMode.READ_UNCOMMITTED);
+                        metrics.record(Stage.LOOKUP, start);
+                    }
+                    PhotoInfo info = candidate
+                            ? collectCandidate(file, photoDate, dataDir, fingerprint)
+                            : collectNew(file, photoDate, dataDir, fingerprint);
+                    info.setFingerprint(fingerprint);
+                    info.setCaptureTime(photoDate.getTime());
+                    if (first == null) {
+                        mine.complete(info);
                     }
+                    return info;
+                } catch (IOException | RuntimeException ex) {
+                    if (first == null) {
+                        pendingFingerprints.remove(fingerprint, mine);
+                        mine.completeExceptionally(ex);
+                    }
+                    throw ex;
                 }
-            } catch (ImageProcessingException ex) {
-                logger.warning(String.format("Error getting metadata for %s", file));
-            } catch (Exception ex) {
-                logger.warning(String.format("Unknown exception processing file %s", file));
             }
+        } catch (ImageProcessingException ex) {
+            logger.warning(String.format("Error getting metadata for %s", file));
+        } catch (Exception ex) {
+            logger.warning(String.format("Unknown exception processing file %s", file));
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the first file with a fingerprint to be collected. If it
+     * failed, we carry on, since it's the DB and the pending contents that
+     * say whether there's a copy.
+     */
+    private void awaitFirst(CompletableFuture<PhotoInfo> first) throws InterruptedIOException {
+        try {
+            first.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a file with the same fingerprint");
+        } catch (ExecutionException ex) {
+            //
+            // The first file will have logged why.
+        }
+    }
+
+    /**
+     * Warns, once, if there are photos in the DB that were stored before we
+     * kept fingerprints. A file with the same contents as one of those isn't
+     * found, because we only look for the contents of files whose fingerprint
+     * is in the DB, so it's copied again.
+     */
+    private void checkFingerprints() {
+        if (checkedFingerprints.compareAndSet(false, true)) {
+            long missing = photoByOrigPath.count() - photoByFingerprint.count();
+            if (missing > 0) {
+                logger.warning(String.format("%,d photos in the DB have no fingerprint, so duplicates of them "
+                        + "won't be found. Run reindex to fingerprint them", missing));
+            }
+        }
+    }
+
+    /**
+     * Gets the directory in the library for photos taken at a given time,
+     * relative to the output directory.
+     *
+     * @param photoDate when the photo was taken
+     * @return the directory
+     */
+    static String getBucket(Date photoDate) {
+        return String.format("%tY/%<tm/%<td", photoDate);
+    }
+
+    private Path getFileDir(Date photoDate) {
+        return outputPath
+                .resolve(String.format("%tY", photoDate))
+                .resolve(String.format("%tm", photoDate))
+                .resolve(String.format("%td", photoDate));
+    }
+
+    /**
+     * Collects a file whose contents can't be in the library already, hashing
+     * it while it's copied.
+     */
+    private PhotoInfo collectNew(Path file, Date photoDate, Directory dataDir, String fingerprint) throws IOException {
+        Path fileDir = getFileDir(photoDate);
+        PhotoInfo adopted = adoptOrphan(file, fileDir, dataDir, fingerprint, null);
+        if (adopted != null) {
+            return adopted;
+        }
+        Path filePath = claimOutputFile(fileDir, file.getFileName());
+        byte[] hash;
+        try {
+            hash = copyAndHash(file, filePath);
+        } catch (IOException ex) {
+            discardOutputFile(filePath);
+            throw ex;
+        }
+        pendingContents.putIfAbsent(contentHash.key(hash), filePath.toString());
+        filesCopied.incrementAndGet();
+        bytesCopied.addAndGet(file.toFile().length());
+        return new PhotoInfo(file, filePath, dataDir, contentHash, hash);
+    }
+
+    /**
+     * Collects a file whose contents might be in the library already. We have
+     * to hash the whole file to find out, with each of the hashes that the
+     * photos with the same fingerprint were stored with.
+     */
+    private PhotoInfo collectCandidate(Path file, Date photoDate, Directory dataDir, String fingerprint) throws IOException {
+        //
+        // If we already have these contents, there's no need for another copy.
+        byte[] hash = hash(file, contentHash);
+        filesHashed.incrementAndGet();
+        String key = contentHash.key(hash);
+        String libraryPath = findContents(key);
+        if (libraryPath != null) {
+            filesAliased.incrementAndGet();
+            return new PhotoInfo(file, libraryPath, dataDir, contentHash, hash);
+        }
+        for (ContentHash other : getOtherHashes(fingerprint)) {
+            byte[] otherHash = hash(file, other);
+            libraryPath = findContents(other.key(otherHash));
+            if (libraryPath != null) {
+                filesAliased.incrementAndGet();
+                return new PhotoInfo(file, libraryPath, dataDir, other, otherHash);
+            }
+        }
+        Path fileDir = getFileDir(photoDate);
+        PhotoInfo adopted = adoptOrphan(file, fileDir, dataDir, fingerprint, hash);
+        if (adopted != null) {
+            return adopted;
+        }
+        Path filePath = claimOutputFile(fileDir, file.getFileName());
+        libraryPath = pendingContents.putIfAbsent(key, filePath.toString());
+        if (libraryPath != null) {
+            //
+            // Another thread got here first.
+            discardOutputFile(filePath);
+            filesAliased.incrementAndGet();
+            return new PhotoInfo(file, libraryPath, dataDir, contentHash, hash);
+        }
+        //
+        // Copy.
+        byte[] copyHash;
+        try {
+            copyHash = copyAndHash(file, filePath);
+        } catch (IOException ex) {
+            pendingContents.remove(key, filePath.toString());
+            discardOutputFile(filePath);
+            throw ex;
+        }
+        if (!Arrays.equals(hash, copyHash)) {
+            logger.warning(String.format("%s changed while it was being copied", file));
+        }
+        filesCopied.incrementAndGet();
+        bytesCopied.addAndGet(file.toFile().length());
+        return new PhotoInfo(file, filePath, dataDir, contentHash, copyHash);
+    }
+
+    /**
+     * Takes over a copy of a file that a run that stopped early left in the
+     * library without storing it in the DB, so that collecting the file again
+     * doesn't make a second copy. The copy must have the same size,
+     * fingerprint and contents as the file.
+     *
+     * @param hash the file's hash, or <code>null</code> if we haven't hashed
+     * it yet
+     * @return the information for the file, or <code>null</code> if there's
+     * no such copy
+     */
+    private PhotoInfo adoptOrphan(Path file, Path fileDir, Directory dataDir, String fingerprint, byte[] hash) throws IOException {
+        long start = IngestMetrics.start();
+        List<Path> orphans = outputNames.getOrphans(fileDir, file.getFileName());
+        metrics.record(Stage.LOOKUP, start);
+        for (Path orphan : orphans) {
+            if (Files.size(orphan) != Files.size(file) || !fingerprint(orphan).equals(fingerprint)) {
+                continue;
+            }
+            if (hash == null) {
+                hash = hash(file, contentHash);
+                filesHashed.incrementAndGet();
+            }
+            if (!Arrays.equals(hash, hash(orphan, contentHash)) || !outputNames.adopt(orphan)) {
+                continue;
+            }
+            String libraryPath = pendingContents.putIfAbsent(contentHash.key(hash), orphan.toString());
+            if (libraryPath != null) {
+                //
+                // Another thread got here first, and the orphan stays one.
+                filesAliased.incrementAndGet();
+                return new PhotoInfo(file, libraryPath, dataDir, contentHash, hash);
+            }
+            logger.info(String.format("Using %s, left by an earlier run, for %s", orphan, file));
+            filesAdopted.incrementAndGet();
+            return new PhotoInfo(file, orphan, dataDir, contentHash, hash);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the hashes, other than the one we're using, that the photos with a
+     * fingerprint were stored with.
+     */
+    private Set<ContentHash> getOtherHashes(String fingerprint) {
+        Set<ContentHash> others = EnumSet.noneOf(ContentHash.class);
+        long start = IngestMetrics.start();
+        try (EntityCursor<PhotoInfo> cursor = photoByFingerprint.subIndex(fingerprint).entities(null, CursorConfig.READ_UNCOMMITTED)) {
+            for (PhotoInfo info : cursor) {
+                if (info.getHash() != null && info.getHashAlgorithm() != contentHash) {
+                    others.add(info.getHashAlgorithm());
+                }
+            }
+        }
+        metrics.record(Stage.LOOKUP, start);
+        return others;
+    }
+
+    /**
+     * Finds where some contents are in the library.
+     *
+     * @param contentHash the hash of the contents
+     * @return the path in the library with those contents, or <code>null</code>
+     * if they aren't in the library.
+     */
+    private String findContents(String contentHash) {
+        long start = IngestMetrics.start();
+        PhotoInfo original = photoByContentHash.get(null, contentHash, LockMode.READ_UNCOMMITTED);
+        metrics.record(Stage.LOOKUP, start);
+        if (original != null) {
+            return original.getLibraryPath();
+        }
+        return pendingContents.get(contentHash);
+    }
+
+    /**
+     * Picks a name in the given directory that isn't in use yet and creates an
+     * empty file with that name, so that no other thread can pick the same
+     * one.
+     */
+    private Path claimOutputFile(Path fileDir, Path fileName) throws IOException {
+        long start = IngestMetrics.start();
+        try {
+            return outputNames.claim(fileDir, fileName);
+        } finally {
+            metrics.record(Stage.MKDIR, start);
+        }
+    }
+
+    /**
+     * Deletes a file that we claimed but didn't use, so that its name can be
+     * used again.
+     */
+    private void discardOutputFile(Path filePath) throws IOException {
+        Files.deleteIfExists(filePath);
+        outputNames.release(filePath);
+    }
+
+    /**
+     * Stores the information for a collected photo in the DB. This should only
+     * be called from one thread at a time.
+     *
+     * @param info the information to store.
+     */
+    protected void store(PhotoInfo info) {
+        if (writer == null) {
+            writer = photoDB.getBatchWriter(batchSize, batchMillis, durability);
+        }
+        long start = IngestMetrics.start();
+        int commits = writer.getCommitCount();
+        boolean put = writer.put(info);
+        metrics.record(Stage.PUT, start);
+        PhotoInfo old = replacing.remove(info.getOrigPath());
+        if (put && old != null && !old.getFinalPath().equals(info.getLibraryPath())) {
+            replaced.add(old);
+        }
+        if (writer.getCommitCount() != commits) {
+            deleteReplacedCopies();
+        }
+        BloomFilter filter = pathFilter;
+        if (put && filter != null) {
+            filter.add(info.getOrigPath());
+        }
+        if (!info.isAlias()) {
+            pendingContents.remove(info.getContentHash(), info.getFinalPath());
+        }
+        if (info.getFingerprint() != null) {
+            CompletableFuture<PhotoInfo> first = pendingFingerprints.get(info.getFingerprint());
+            if (first != null && first.getNow(null) == info) {
+                pendingFingerprints.remove(info.getFingerprint(), first);
+            }
+        }
+        if (!put) {
+            //
+            // Nothing in the DB refers to the copy, so it would only be
+            // copied again next time.
+            filesSkipped++;
+            if (!info.isAlias() && !isReferenced(info)) {
+                try {
+                    discardOutputFile(Paths.get(info.getFinalPath()));
+                } catch (IOException ex) {
+                    logger.warning(String.format("Error deleting copy %s", info.getFinalPath()));
+                }
+            }
+            return;
+        }
+        filesStored++;
+        metrics.maybeLogProgress();
+    }
+
+    /**
+     * Commits the current batch if it has been open for long enough. This
+     * should be called from the thread that stores photos.
+     */
+    protected void maybeCommit() {
+        if (writer != null) {
+            int commits = writer.getCommitCount();
+            writer.maybeCommit();
+            if (writer.getCommitCount() != commits) {
+                deleteReplacedCopies();
+            }
+        }
+    }
+
+    /**
+     * Deletes the library copies of changed photos, now that the infos that
+     * replaced them are committed. A copy is kept if another photo is an
+     * alias of it, which we can find because an alias has the same content
+     * hash as the copy.
+     */
+    private void deleteReplacedCopies() {
+        for (PhotoInfo old : replaced) {
+            String path = old.getFinalPath();
+            if (isReferenced(old)) {
+                logger.info(String.format("Keeping %s, which other photos are aliases of", path));
+                continue;
+            }
+            try {
+                discardOutputFile(Paths.get(path));
+                copiesDeleted++;
+            } catch (IOException ex) {
+                logger.warning(String.format("Error deleting old copy %s", path));
+            }
+        }
+        replaced.clear();
+    }
+
+    /**
+     * Checks whether anything other than a photo's own info refers to its
+     * library copy.
+     */
+    private boolean isReferenced(PhotoInfo old) {
+        String path = old.getFinalPath();
+        if (pendingContents.containsValue(path)) {
+            return true;
+        }
+        try (EntityCursor<PhotoInfo> cursor = photoByContentHash.subIndex(old.getContentHash()).entities(null, CursorConfig.READ_UNCOMMITTED)) {
+            for (PhotoInfo info : cursor) {
+                if (path.equals(info.getLibraryPath())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stores any photos that are waiting to be committed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (walker != null) {
+                walker.close();
+                walker = null;
+            }
+        }
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            deleteReplacedCopies();
         }
-        return FileVisitResult.CONTINUE;
     }
 
     public String getReport() {
-        return String.format("Visited %,d directories and %,d files. Copied %,d files, %,d bytes", dirsVisited, filesVisited, filesCopied, bytesCopied);
+        String report = String.format("Visited %,d directories and %,d files. Copied %,d files, %,d bytes. Hashed %,d possible duplicates and skipped %,d",
+                dirsVisited.get(), filesVisited.get(), filesCopied.get(), bytesCopied.get(), filesHashed.get(), filesAliased.get());
+        if (filesAdopted.get() > 0) {
+            report += String.format(". Used %,d copies left by an earlier run", filesAdopted.get());
+        }
+        if (filesSkipped > 0) {
+            report += String.format(". Couldn't store %,d photos", filesSkipped);
+        }
+        if (copiesDeleted > 0) {
+            report += String.format(". Deleted %,d old copies of changed photos", copiesDeleted);
+        }
+        BloomFilter filter = pathFilter;
+        if (filter != null) {
+            long positives = pathFalsePositives.get();
+            long negatives = pathsFiltered.get() + positives;
+            report += String.format(". Path filter of %,d paths in %,d KB skipped %,d lookups, false positive rate %.3f%% (expected %.3f%%)",
+                    filter.getAdded(), filter.getMemoryBytes() / 1024, pathsFiltered.get(),
+                    negatives == 0 ? 0.0 : 100.0 * positives / negatives, 100 * filter.getExpectedFpp());
+        }
+        return report;
     }
 
     @Override
@@ -0,0 +1,124 @@
+package com.eelstretching.photo;
+
+/**
+ * Helps scan the keys that start with a prefix, ignoring ASCII case the way
+ * that a case insensitive {@link java.util.regex.Pattern} does.
+ *
+ * <p>
+ * The keys that start with some case variant of a prefix aren't all next to
+ * each other, so we skip between them: start at the lowest variant of the
+ * prefix, and whenever we hit a key that doesn't match, jump to the lowest
+ * variant that sorts after it.
+ */
+public class PrefixRange {
+
+    private PrefixRange() {
+    }
+
+    /**
+     * Checks whether a key starts with a prefix.
+     *
+     * @param key the key
+     * @param prefix the prefix
+     * @param ignoreCase whether to ignore ASCII case
+     * @return true if the key starts with the prefix
+     */
+    public static boolean startsWith(String key, String prefix, boolean ignoreCase) {
+        if (!ignoreCase) {
+            return key.startsWith(prefix);
+        }
+        if (key.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (!sameIgnoringCase(key.charAt(i), prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the case variant of a string that sorts first.
+     *
+     * @param s the string
+     * @return the variant of the string that sorts first
+     */
+    public static String lowest(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            sb.append(lowest(s.charAt(i)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds the first key after a given key that could start with a case
+     * variant of a prefix.
+     *
+     * @param key a key that doesn't start with the prefix
+     * @param prefix the prefix
+     * @return the first possible key after the given key that starts with a
+     * case variant of the prefix, or <code>null</code> if there can't be any
+     * more.
+     */
+    public static String next(String key, String prefix) {
+        int n = Math.min(key.length(), prefix.length());
+        int i = 0;
+        while (i < n && sameIgnoringCase(key.charAt(i), prefix.charAt(i))) {
+            i++;
+        }
+        if (i == key.length()) {
+            //
+            // The key is a variant of the start of the prefix, so the next one
+            // is the key with the rest of the prefix on the end.
+            return key + lowest(prefix.substring(i));
+        }
+        //
+        // Find the last position, at or before the mismatch, where we can
+        // move to a higher variant of the prefix.
+        for (int j = i; j >= 0; j--) {
+            if (j >= prefix.length()) {
+                continue;
+            }
+            char higher = higher(prefix.charAt(j), key.charAt(j));
+            if (higher != 0) {
+                return key.substring(0, j) + higher + lowest(prefix.substring(j + 1));
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean sameIgnoringCase(char a, char b) {
+        return a == b || (isAsciiLetter(a) && isAsciiLetter(b) && Character.toLowerCase(a) == Character.toLowerCase(b));
+    }
+
+    /**
+     * Upper case ASCII letters sort before lower case ones.
+     */
+    private static char lowest(char c) {
+        return isAsciiLetter(c) ? Character.toUpperCase(c) : c;
+    }
+
+    /**
+     * Gets the lowest case variant of a character that sorts after another
+     * character.
+     *
+     * @return the variant, or 0 if there isn't one.
+     */
+    private static char higher(char c, char than) {
+        if (isAsciiLetter(c)) {
+            char upper = Character.toUpperCase(c);
+            char lower = Character.toLowerCase(c);
+            if (upper > than) {
+                return upper;
+            }
+            return lower > than ? lower : 0;
+        }
+        return c > than ? c : 0;
+    }
+}
@@ -0,0 +1,146 @@
+package com.eelstretching.photo;
+
+/**
+ * Works out the literal text that every string matched by a regular
+ * expression has to start with, so that a match can be limited to a range of
+ * sorted keys instead of scanning all of them.
+ *
+ * <p>
+ * This is conservative: anything that we don't understand ends the prefix,
+ * and any alternation means that there is no prefix at all.
+ */
+public class RegexPrefix {
+
+    private static final String META = ".[]{}()*+?^$|\\";
+
+    private final String prefix;
+
+    private final boolean literal;
+
+    private final boolean prefixOnly;
+
+    private RegexPrefix(String prefix, boolean literal, boolean prefixOnly) {
+        this.prefix = prefix;
+        this.literal = literal;
+        this.prefixOnly = prefixOnly;
+    }
+
+    /**
+     * Gets the literal prefix of the strings matched by the regex.
+     *
+     * @return the prefix, which is empty if we couldn't work one out.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Whether the regex only matches its prefix.
+     *
+     * @return true if the regex is a literal string.
+     */
+    public boolean isLiteral() {
+        return literal;
+    }
+
+    /**
+     * Whether the regex matches anything that starts with its prefix, i.e.,
+     * it's the prefix followed by <code>.*</code>.
+     *
+     * @return true if the regex is a literal string followed by anything.
+     */
+    public boolean isPrefixOnly() {
+        return prefixOnly;
+    }
+
+    /**
+     * Works out the prefix for a regex.
+     *
+     * @param regex the regex
+     * @return the prefix information
+     */
+    public static RegexPrefix of(String regex) {
+        if (hasAlternation(regex)) {
+            return new RegexPrefix("", false, false);
+        }
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        if (regex.startsWith("^")) {
+            i++;
+        }
+        int n = regex.length();
+        while (i < n) {
+            char c = regex.charAt(i);
+            int lastLength = sb.length();
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= n) {
+                    break;
+                }
+                char e = regex.charAt(i + 1);
+                if (e == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0) {
+                        end = n;
+                    }
+                    sb.append(regex, i + 2, end);
+                    i = Math.min(n, end + 2);
+                    continue;
+                }
+                if (Character.isLetterOrDigit(e)) {
+                    //
+                    // A character class or a back reference.
+                    break;
+                }
+                sb.append(e);
+                next = i + 2;
+            } else if (META.indexOf(c) >= 0) {
+                break;
+            } else {
+                sb.append(c);
+                next = i + 1;
+            }
+            if (next < n) {
+                char q = regex.charAt(next);
+                if (q == '*' || q == '?' || q == '{') {
+                    //
+                    // The last character is optional.
+                    sb.setLength(lastLength);
+                    i = next;
+                    break;
+                } else if (q == '+') {
+                    //
+                    // The last character is there at least once, but we can't
+                    // say what comes after it.
+                    i = next;
+                    break;
+                }
+            }
+            i = next;
+        }
+        String rest = regex.substring(i);
+        return new RegexPrefix(sb.toString(),
+                rest.isEmpty() || rest.equals("$"),
+                rest.equals(".*") || rest.equals(".*$"));
+    }
+
+    /**
+     * Checks whether a regex has an alternation outside of a character class.
+     */
+    private static boolean hasAlternation(String regex) {
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if (c == '|' && !inClass) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
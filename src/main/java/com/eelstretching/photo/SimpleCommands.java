@@ -1,14 +1,26 @@
 package com.eelstretching.photo;
 
+import com.eelstretching.photo.persist.PhotoInfo;
 import com.oracle.labs.mlrg.olcut.command.Command;
 import com.oracle.labs.mlrg.olcut.command.CommandGroup;
 import com.oracle.labs.mlrg.olcut.command.CommandInterpreter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.logging.Logger;
 
 /**
  *
  */
 public class SimpleCommands implements CommandGroup {
 
+    private static final Logger logger = Logger.getLogger(SimpleCommands.class.getName());
+
     private PhotoDB photoDB;
 
     public SimpleCommands(PhotoDB photoDB) {
@@ -27,7 +39,84 @@ public class SimpleCommands implements CommandGroup {
 
     @Command(usage = "Print the size of the database")
     public String size(CommandInterpreter ci) {
-        return String.format("%,d photos", photoDB.photoByOrigPath.map().size());
+        return String.format("%,d photos", photoDB.photoByOrigPath.count());
+    }
+
+    @Command(usage = "Set the number of threads used to scan the whole database")
+    public String scanThreads(CommandInterpreter ci, int n) {
+        photoDB.setScanThreads(n);
+        return String.format("Scanning with %d threads", Math.max(1, n));
+    }
+
+    @Command(usage = "Fill in index keys for photos stored by older versions")
+    public String reindex(CommandInterpreter ci) {
+        FileCopier copier = new FileCopier();
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            return "No MD5?";
+        }
+        int n = photoDB.updateAll(info -> {
+            boolean changed = false;
+            if (info.getContentHash() == null && info.getHash() != null) {
+                info.setHash(info.getHashAlgorithm(), info.getHash());
+                changed = true;
+            }
+            if (info.getFingerprint() == null && info.getLibraryPath() != null) {
+                //
+                // The copy in the library has the same contents as the
+                // original, and it's more likely to still be around.
+                try {
+                    md5.reset();
+                    long size = copier.hashEnds(Paths.get(info.getLibraryPath()), PhotoVisitor.FINGERPRINT_BYTES, md5);
+                    info.setFingerprint(PhotoInfo.makeFingerprint(size, md5.digest()));
+                    changed = true;
+                } catch (IOException ex) {
+                    logger.warning(String.format("Can't fingerprint %s", info.getLibraryPath()));
+                }
+            }
+            if (info.getCaptureTime() == null && info.getLibraryPath() != null) {
+                long captureTime = getLibraryDate(Paths.get(info.getLibraryPath()));
+                if (captureTime != 0) {
+                    info.setCaptureTime(captureTime);
+                    changed = true;
+                }
+            }
+            return changed;
+        });
+        int nTagged = photoDB.indexAllTags();
+        return String.format("Updated %,d photos, indexed tags for %,d", n, nTagged);
+    }
+
+    @Command(usage = "Rewrite photos stored by older versions in the compact tag format")
+    public String compact(CommandInterpreter ci) {
+        int n = photoDB.updateAll(info -> info.compact(photoDB.tagDictionary));
+        return String.format("Compacted %,d photos, %,d names in the tag dictionary", n, photoDB.tagDictionary.size());
+    }
+
+    /**
+     * Gets the capture date of a photo from where it is in the library, which
+     * is laid out by year, month and day.
+     *
+     * @param libraryPath the path of the photo in the library
+     * @return the start of the day that the photo was captured in milliseconds
+     * since the epoch, or 0 if the path isn't laid out that way.
+     */
+    private static long getLibraryDate(Path libraryPath) {
+        int n = libraryPath.getNameCount();
+        if (n < 4) {
+            return 0;
+        }
+        try {
+            LocalDate date = LocalDate.of(
+                    Integer.parseInt(libraryPath.getName(n - 4).toString()),
+                    Integer.parseInt(libraryPath.getName(n - 3).toString()),
+                    Integer.parseInt(libraryPath.getName(n - 2).toString()));
+            return date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (NumberFormatException | DateTimeException ex) {
+            return 0;
+        }
     }
 
 
@@ -0,0 +1,510 @@
+package com.eelstretching.photo;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates a tree of synthetic photos and movies for load testing. The files
+ * have just enough structure for the metadata reader to find their capture
+ * dates: JPEGs have an EXIF IFD0 with a date, QuickTime movies have a movie
+ * header with a creation time, and AVIs have an IDIT chunk. The rest of each
+ * file is random filler. The same seed and settings always give the same tree.
+ * Usage:
+ *
+ * <pre>
+ * TreeGenerator &lt;output dir&gt; &lt;number of files&gt; [name=value...]
+ * </pre>
+ *
+ * where the settings are <code>seed</code>, <code>dupRatio</code>,
+ * <code>nearDupRatio</code>, <code>collisionRatio</code>,
+ * <code>maxDepth</code>, <code>minKB</code>, <code>maxKB</code>, and
+ * <code>formats</code>, which gives weights for the formats, like
+ * <code>jpg:80,mov:15,avi:5</code>.
+ *
+ * <p>
+ * Duplicates are copies of earlier files at new paths. Near duplicates are
+ * copies with one byte changed in the middle, so big ones have the same
+ * fingerprint as the file that they were copied from but different contents.
+ * Collisions reuse the name and capture time of an earlier file, so that they
+ * land in the same place in the library. A <code>manifest.tsv</code> in the
+ * output directory lists what was generated.
+ *
+ * <p>
+ * We don't generate HEIC files, since a valid HEIF container is a lot more
+ * involved than these. Use real samples for those.
+ */
+public class TreeGenerator {
+
+    private static final Logger logger = Logger.getLogger(TreeGenerator.class.getName());
+
+    /**
+     * The formats that we can generate.
+     */
+    public enum Format {
+        JPG("IMG_%05d.JPG"),
+        MOV("MVI_%05d.MOV"),
+        AVI("MVI_%05d.AVI");
+
+        private final String namePattern;
+
+        Format(String namePattern) {
+            this.namePattern = namePattern;
+        }
+    }
+
+    /**
+     * Seconds from the QuickTime epoch (1904-01-01) to the Unix epoch.
+     */
+    private static final long QUICKTIME_EPOCH_OFFSET = 2082844800L;
+
+    private static final String[] CAMERAS = {
+        "Canon", "Canon EOS 5D Mark II",
+        "Canon", "Canon PowerShot S95",
+        "NIKON CORPORATION", "NIKON D90",
+        "Apple", "iPhone 6",
+        "Google", "Pixel 4a"
+    };
+
+    private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss", Locale.US);
+
+    private static final DateTimeFormatter AVI_DATE = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss yyyy", Locale.US);
+
+    private final Random rand;
+
+    private double dupRatio = 0.1;
+
+    private double nearDupRatio = 0.02;
+
+    private double collisionRatio = 0.02;
+
+    private int maxDepth = 4;
+
+    private int minKB = 100;
+
+    private int maxKB = 8 * 1024;
+
+    private final Map<Format, Integer> formatWeights = new EnumMap<>(Format.class);
+
+    /**
+     * A file that we've generated.
+     */
+    private static class Generated {
+
+        final Path path;
+
+        final Format format;
+
+        final LocalDateTime date;
+
+        final String name;
+
+        Generated(Path path, Format format, LocalDateTime date, String name) {
+            this.path = path;
+            this.format = format;
+            this.date = date;
+            this.name = name;
+        }
+    }
+
+    public TreeGenerator(long seed) {
+        rand = new Random(seed);
+        formatWeights.put(Format.JPG, 80);
+        formatWeights.put(Format.MOV, 15);
+        formatWeights.put(Format.AVI, 5);
+    }
+
+    public void setDupRatio(double dupRatio) {
+        this.dupRatio = dupRatio;
+    }
+
+    public void setNearDupRatio(double nearDupRatio) {
+        this.nearDupRatio = nearDupRatio;
+    }
+
+    public void setCollisionRatio(double collisionRatio) {
+        this.collisionRatio = collisionRatio;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(1, maxDepth);
+    }
+
+    /**
+     * Sets the range of sizes for photos. Sizes are spread evenly on a log
+     * scale, and movies are ten times bigger.
+     *
+     * @param minKB the smallest size, in KB
+     * @param maxKB the biggest size, in KB
+     */
+    public void setSizeRange(int minKB, int maxKB) {
+        this.minKB = Math.max(1, minKB);
+        this.maxKB = Math.max(this.minKB, maxKB);
+    }
+
+    /**
+     * Sets how often each format is generated.
+     *
+     * @param weights a weight for each format. Formats that aren't given
+     * aren't generated.
+     */
+    public void setFormatWeights(Map<Format, Integer> weights) {
+        formatWeights.clear();
+        formatWeights.putAll(weights);
+    }
+
+    /**
+     * Generates a tree of files.
+     *
+     * @param root the directory to put the tree in
+     * @param n the number of files to generate
+     * @throws IOException if there's an error writing the files
+     */
+    public void generate(Path root, int n) throws IOException {
+        Files.createDirectories(root);
+        List<Generated> originals = new ArrayList<>();
+        long totalBytes = 0;
+        try (BufferedWriter manifest = Files.newBufferedWriter(root.resolve("manifest.tsv"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < n; i++) {
+                Path dir = root.resolve(randomDir());
+                Files.createDirectories(dir);
+                double r = rand.nextDouble();
+                String kind;
+                Generated source = null;
+                Generated file;
+                if (!originals.isEmpty() && r < dupRatio) {
+                    kind = "dup";
+                    source = originals.get(rand.nextInt(originals.size()));
+                    file = new Generated(dir.resolve(String.format(source.format.namePattern, i)), source.format, source.date, null);
+                    Files.copy(source.path, file.path);
+                } else if (!originals.isEmpty() && r < dupRatio + nearDupRatio) {
+                    kind = "neardup";
+                    source = originals.get(rand.nextInt(originals.size()));
+                    file = new Generated(dir.resolve(String.format(source.format.namePattern, i)), source.format, source.date, null);
+                    Files.copy(source.path, file.path);
+                    flipMiddleByte(file.path);
+                } else if (!originals.isEmpty() && r < dupRatio + nearDupRatio + collisionRatio) {
+                    kind = "collision";
+                    source = originals.get(rand.nextInt(originals.size()));
+                    file = new Generated(dir.resolve(source.name), source.format, source.date, source.name);
+                    if (Files.exists(file.path)) {
+                        file = new Generated(root.resolve(randomDir()).resolve(String.valueOf(i)).resolve(source.name),
+                                source.format, source.date, source.name);
+                        Files.createDirectories(file.path.getParent());
+                    }
+                    write(file);
+                } else {
+                    kind = "original";
+                    Format format = randomFormat();
+                    String name = String.format(format.namePattern, i);
+                    file = new Generated(dir.resolve(name), format, randomDate(), name);
+                    write(file);
+                    originals.add(file);
+                }
+                long size = Files.size(file.path);
+                totalBytes += size;
+                manifest.write(String.format("%s\t%s\t%d\t%s\t%s\t%s%n",
+                        root.relativize(file.path), file.format, size, file.date, kind,
+                        source == null ? "" : root.relativize(source.path)));
+                if ((i + 1) % 1000 == 0) {
+                    logger.info(String.format("Generated %,d files, %,d bytes", i + 1, totalBytes));
+                }
+            }
+        }
+        logger.info(String.format("Generated %,d files, %,d bytes in %s", n, totalBytes, root));
+    }
+
+    private Path randomDir() {
+        int depth = 1 + rand.nextInt(maxDepth);
+        String[] parts = new String[depth];
+        for (int d = 0; d < depth; d++) {
+            parts[d] = String.format("%s%d", d == 0 ? "card" : "dir", rand.nextInt(d == 0 ? 4 : 8));
+        }
+        return Paths.get(parts[0], Arrays.copyOfRange(parts, 1, depth));
+    }
+
+    private Format randomFormat() {
+        int total = 0;
+        for (int w : formatWeights.values()) {
+            total += w;
+        }
+        int r = rand.nextInt(Math.max(1, total));
+        for (Map.Entry<Format, Integer> e : formatWeights.entrySet()) {
+            r -= e.getValue();
+            if (r < 0) {
+                return e.getKey();
+            }
+        }
+        return Format.JPG;
+    }
+
+    private LocalDateTime randomDate() {
+        return LocalDateTime.of(2005, 1, 1, 0, 0).plusSeconds((long) (rand.nextDouble() * 15 * 365 * 24 * 3600));
+    }
+
+    private long randomSize(Format format) {
+        double logSize = Math.log(minKB) + rand.nextDouble() * (Math.log(maxKB) - Math.log(minKB));
+        long size = (long) (Math.exp(logSize) * 1024);
+        return format == Format.JPG ? size : size * 10;
+    }
+
+    /**
+     * Writes a new file with a header for its format and random filler.
+     */
+    private void write(Generated file) throws IOException {
+        long size = randomSize(file.format);
+        byte[] header;
+        byte[] trailer = new byte[0];
+        switch (file.format) {
+            case MOV:
+                header = makeMovHeader(file.date, size);
+                break;
+            case AVI:
+                header = makeAviHeader(file.date, size);
+                break;
+            default:
+                int c = 2 * rand.nextInt(CAMERAS.length / 2);
+                header = makeJpegHeader(file.date, CAMERAS[c], CAMERAS[c + 1]);
+                trailer = new byte[]{(byte) 0xff, (byte) 0xd9};
+                break;
+        }
+        long filler = Math.max(0, size - header.length - trailer.length);
+        try (OutputStream os = Files.newOutputStream(file.path)) {
+            os.write(header);
+            byte[] block = new byte[64 * 1024];
+            for (long written = 0; written < filler; written += block.length) {
+                rand.nextBytes(block);
+                if (file.format == Format.JPG) {
+                    //
+                    // Keep markers out of the entropy coded data.
+                    for (int k = 0; k < block.length; k++) {
+                        if (block[k] == (byte) 0xff) {
+                            block[k] = (byte) 0xfe;
+                        }
+                    }
+                }
+                os.write(block, 0, (int) Math.min(block.length, filler - written));
+            }
+            os.write(trailer);
+        }
+    }
+
+    private static void flipMiddleByte(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long pos = ch.size() / 2;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, pos);
+            b.put(0, (byte) (b.get(0) ^ 0x01));
+            b.rewind();
+            ch.write(b, pos);
+        }
+    }
+
+    /**
+     * Makes the start of a JPEG: the start of image marker, an APP1 segment
+     * with an EXIF IFD0 that has the make, model and date, and the start of a
+     * scan. Everything after this is taken to be image data.
+     *
+     * @param date the capture date
+     * @param make the camera make
+     * @param model the camera model
+     * @return the header bytes
+     */
+    public static byte[] makeJpegHeader(LocalDateTime date, String make, String model) {
+        byte[][] values = {
+            ascii(make),
+            ascii(model),
+            ascii(date.format(EXIF_DATE))
+        };
+        int[] tags = {0x010f, 0x0110, 0x0132};
+        int ifdSize = 2 + values.length * 12 + 4;
+        int dataSize = 0;
+        for (byte[] v : values) {
+            dataSize += v.length;
+        }
+        ByteBuffer tiff = ByteBuffer.allocate(8 + ifdSize + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        tiff.putShort((short) values.length);
+        int dataOffset = 8 + ifdSize;
+        for (int k = 0; k < values.length; k++) {
+            tiff.putShort((short) tags[k]).putShort((short) 2).putInt(values[k].length);
+            if (values[k].length <= 4) {
+                tiff.put(Arrays.copyOf(values[k], 4));
+            } else {
+                tiff.putInt(dataOffset);
+                dataOffset += values[k].length;
+            }
+        }
+        tiff.putInt(0);
+        for (byte[] v : values) {
+            if (v.length > 4) {
+                tiff.put(v);
+            }
+        }
+        byte[] tiffBytes = Arrays.copyOf(tiff.array(), tiff.position());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        byte[] exif = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+        int app1Length = 2 + exif.length + tiffBytes.length;
+        out.write(0xff);
+        out.write(0xe1);
+        out.write(app1Length >> 8);
+        out.write(app1Length & 0xff);
+        out.write(exif, 0, exif.length);
+        out.write(tiffBytes, 0, tiffBytes.length);
+        //
+        // A start of scan for one component.
+        byte[] sos = {(byte) 0xff, (byte) 0xda, 0, 8, 1, 1, 0, 0, 63, 0};
+        out.write(sos, 0, sos.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Makes the start of a QuickTime movie: a file type box, a movie box with
+     * a movie header that has the creation time, and the header of a media
+     * data box that holds the rest of the file.
+     *
+     * @param date the creation time, in UTC
+     * @param size the size of the whole file
+     * @return the header bytes
+     */
+    public static byte[] makeMovHeader(LocalDateTime date, long size) {
+        long created = date.toEpochSecond(ZoneOffset.UTC) + QUICKTIME_EPOCH_OFFSET;
+        ByteBuffer b = ByteBuffer.allocate(20 + 8 + 108 + 8).order(ByteOrder.BIG_ENDIAN);
+        b.putInt(20).put(ascii4("ftyp")).put(ascii4("qt  ")).putInt(0).put(ascii4("qt  "));
+        b.putInt(8 + 108).put(ascii4("moov"));
+        b.putInt(108).put(ascii4("mvhd"));
+        b.putInt(0);
+        b.putInt((int) created).putInt((int) created);
+        b.putInt(600).putInt(600 * 10);
+        b.putInt(0x00010000).putShort((short) 0x0100);
+        b.put(new byte[10]);
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int m : matrix) {
+            b.putInt(m);
+        }
+        for (int k = 0; k < 6; k++) {
+            b.putInt(0);
+        }
+        b.putInt(2);
+        long mdatSize = Math.max(8, size - b.position());
+        b.putInt((int) Math.min(mdatSize, 0xffffffffL)).put(ascii4("mdat"));
+        return b.array();
+    }
+
+    /**
+     * Makes the start of an AVI: a RIFF header, a header list with a main AVI
+     * header and an IDIT chunk with the date, and the start of a movie list
+     * that holds the rest of the file.
+     *
+     * @param date the capture date
+     * @param size the size of the whole file
+     * @return the header bytes
+     */
+    public static byte[] makeAviHeader(LocalDateTime date, long size) {
+        byte[] idit = (date.format(AVI_DATE) + "\n\0").getBytes(StandardCharsets.US_ASCII);
+        int iditPadded = idit.length + (idit.length & 1);
+        int hdrlSize = 4 + 8 + 56 + 8 + iditPadded;
+        ByteBuffer b = ByteBuffer.allocate(12 + 8 + hdrlSize + 12).order(ByteOrder.LITTLE_ENDIAN);
+        long riffSize = Math.max(size, b.capacity()) - 8;
+        b.put(ascii4("RIFF")).putInt((int) riffSize).put(ascii4("AVI "));
+        b.put(ascii4("LIST")).putInt(hdrlSize).put(ascii4("hdrl"));
+        b.put(ascii4("avih")).putInt(56);
+        b.putInt(33333).putInt(0).putInt(0).putInt(0);
+        b.putInt(300).putInt(0).putInt(1).putInt(0);
+        b.putInt(640).putInt(480);
+        b.put(new byte[16]);
+        b.put(ascii4("IDIT")).putInt(idit.length).put(idit);
+        if (iditPadded > idit.length) {
+            b.put((byte) 0);
+        }
+        long moviSize = Math.max(4, size - b.position() - 8);
+        b.put(ascii4("LIST")).putInt((int) moviSize).put(ascii4("movi"));
+        return b.array();
+    }
+
+    private static byte[] ascii(String s) {
+        return (s + "\0").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] ascii4(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        for (Handler h : Logger.getLogger("").getHandlers()) {
+            h.setFormatter(new EelsLogFormatter());
+            h.setLevel(Level.ALL);
+        }
+
+        if (args.length < 2) {
+            System.err.println("Usage: TreeGenerator <output dir> <number of files> [name=value...]");
+            return;
+        }
+
+        Path root = Paths.get(args[0]);
+        int n = Integer.parseInt(args[1]);
+        Map<String, String> settings = new java.util.HashMap<>();
+        for (String arg : Arrays.copyOfRange(args, 2, args.length)) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                logger.warning(String.format("Ignoring setting %s", arg));
+                continue;
+            }
+            settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        TreeGenerator generator = new TreeGenerator(Long.parseLong(settings.getOrDefault("seed", "42")));
+        if (settings.containsKey("dupRatio")) {
+            generator.setDupRatio(Double.parseDouble(settings.get("dupRatio")));
+        }
+        if (settings.containsKey("nearDupRatio")) {
+            generator.setNearDupRatio(Double.parseDouble(settings.get("nearDupRatio")));
+        }
+        if (settings.containsKey("collisionRatio")) {
+            generator.setCollisionRatio(Double.parseDouble(settings.get("collisionRatio")));
+        }
+        if (settings.containsKey("maxDepth")) {
+            generator.setMaxDepth(Integer.parseInt(settings.get("maxDepth")));
+        }
+        generator.setSizeRange(Integer.parseInt(settings.getOrDefault("minKB", "100")),
+                Integer.parseInt(settings.getOrDefault("maxKB", String.valueOf(8 * 1024))));
+        if (settings.containsKey("formats")) {
+            Map<Format, Integer> weights = new EnumMap<>(Format.class);
+            for (String fw : settings.get("formats").split(",")) {
+                String[] parts = fw.split(":");
+                weights.put(Format.valueOf(parts[0].toUpperCase()), parts.length > 1 ? Integer.parseInt(parts[1]) : 1);
+            }
+            generator.setFormatWeights(weights);
+        }
+
+        generator.generate(root, n);
+    }
+}
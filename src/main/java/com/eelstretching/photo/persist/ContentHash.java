@@ -0,0 +1,72 @@
+package com.eelstretching.photo.persist;
+
+/**
+ * The hashes that we can use to find photos with the same contents. Each
+ * photo records which one its hash was made with. The key that we index a
+ * hash under is its hex string, prefixed with the algorithm so that hashes
+ * made with different algorithms can't be mistaken for each other. MD5 keys
+ * have no prefix, so that photos stored before there was a choice keep their
+ * keys. Making the digests for these is up to the code that hashes files.
+ */
+public enum ContentHash {
+    /**
+     * MD5, which is what everything used to be hashed with.
+     */
+    MD5("md5", ""),
+    /**
+     * SHA-256, for when we want a cryptographic hash.
+     */
+    SHA256("sha256", "sha256:"),
+    /**
+     * 128 bit MurmurHash3, which is the fastest.
+     */
+    MURMUR3_128("murmur3", "m3:");
+
+    private final String id;
+
+    private final String keyPrefix;
+
+    ContentHash(String id, String keyPrefix) {
+        this.id = id;
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * Gets the ID that's stored with a hash.
+     *
+     * @return the ID
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the algorithm for an ID.
+     *
+     * @param id the ID, or <code>null</code> for photos that were stored
+     * before we recorded it
+     * @return the algorithm
+     * @throws IllegalArgumentException if there is no algorithm with that ID
+     */
+    public static ContentHash forId(String id) {
+        if (id == null) {
+            return MD5;
+        }
+        for (ContentHash h : values()) {
+            if (h.id.equalsIgnoreCase(id) || h.name().equalsIgnoreCase(id)) {
+                return h;
+            }
+        }
+        throw new IllegalArgumentException("Unknown content hash " + id);
+    }
+
+    /**
+     * Makes the key to index a hash under.
+     *
+     * @param hash the hash
+     * @return the key
+     */
+    public String key(byte[] hash) {
+        return keyPrefix + PhotoInfo.toHex(hash);
+    }
+}
@@ -0,0 +1,70 @@
+package com.eelstretching.photo.persist;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * An entry in the journal of file operations. An entry is written before the
+ * file is touched and deleted in the same transaction that deletes the photo
+ * from the DB, so if we crash in between we can tell which photos were being
+ * worked on.
+ */
+@Entity(version = 1)
+public class FileOp {
+
+    /**
+     * What we're doing to the file.
+     */
+    public enum Kind {
+        MOVE,
+        DELETE
+    }
+
+    @PrimaryKey
+    protected String origPath;
+
+    protected Kind kind;
+
+    /**
+     * Where the file is being moved to, for moves.
+     */
+    protected String target;
+
+    /**
+     * When the operation was journaled, in milliseconds since the epoch.
+     */
+    protected long created;
+
+    public FileOp() {
+
+    }
+
+    public FileOp(String origPath, Kind kind, String target) {
+        this.origPath = origPath;
+        this.kind = kind;
+        this.target = target;
+        created = System.currentTimeMillis();
+    }
+
+    public String getOrigPath() {
+        return origPath;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return "FileOp{" + "origPath=" + origPath + ", kind=" + kind + ", target=" + target + '}';
+    }
+
+}
@@ -6,41 +6,154 @@ import com.sleepycat.persist.model.Entity;
 import com.sleepycat.persist.model.PrimaryKey;
 import com.sleepycat.persist.model.Relationship;
 import com.sleepycat.persist.model.SecondaryKey;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 
 /**
  * Information about a single photo
  */
-@Entity(version = 1)
+@Entity(version = 8)
 public class PhotoInfo {
     
     @PrimaryKey
     protected String origPath;
     
+    /**
+     * Where the photo was copied in the library. This is <code>null</code> for
+     * photos whose contents were already in the library when they were
+     * collected.
+     */
     @SecondaryKey(relate = Relationship.ONE_TO_ONE)
     protected String finalPath;
+
+    /**
+     * The final path of the photo with the same contents as this one, if this
+     * photo wasn't copied into the library.
+     */
+    protected String aliasOf;
     
+    /**
+     * The type of metadata directory, for photos stored before we had the tag
+     * dictionary, and for new photos until they're stored.
+     */
     protected String directoryType;
+
+    /**
+     * The tags, for photos stored before we had the tag dictionary, and for
+     * new photos until they're stored. This is <code>null</code> for stored
+     * photos, which use {@link #tags}.
+     */
+    protected Map<String,String> tagNames;
+
+    /**
+     * The number of the directory type in the tag dictionary.
+     */
+    protected int directoryTypeId;
+
+    /**
+     * The tags, encoded as a sequence of tag name numbers from the tag
+     * dictionary and UTF-8 values, each preceded by its length. Numbers and
+     * lengths are variable length integers, and a length of 0 means that
+     * there is no value.
+     */
+    protected byte[] tags;
+
+    /**
+     * The decoded tags, made when they're first asked for or when the tags
+     * are encoded.
+     */
+    private transient Map<String, String> decodedTags;
     
-    protected Map<String,String> tagNames = new HashMap<>();
-    
+    /**
+     * The hash of the contents. This was always an MD5, and the name stuck.
+     */
     protected byte[] md5;
+
+    /**
+     * The ID of the {@link ContentHash} that the contents were hashed with,
+     * or <code>null</code> for MD5.
+     */
+    protected String hashAlgorithm;
+
+    /**
+     * The key for the hash of the contents, so that we can find photos with
+     * the same contents.
+     */
+    @SecondaryKey(relate = Relationship.MANY_TO_ONE)
+    protected String contentHash;
+
+    /**
+     * A cheap fingerprint of the contents, made from the size of the file and
+     * a hash of its ends. Photos with different fingerprints can't have the
+     * same contents.
+     */
+    @SecondaryKey(relate = Relationship.MANY_TO_ONE)
+    protected String fingerprint;
+
+    /**
+     * When the photo was taken, in milliseconds since the epoch. This is the
+     * date that decides where the photo goes in the library. It's
+     * <code>null</code> for photos that we don't know the date of, which
+     * keeps them out of the index.
+     */
+    @SecondaryKey(relate = Relationship.MANY_TO_ONE)
+    protected Long captureTime;
+
+    /**
+     * The size of the original file when it was collected.
+     */
+    protected long sourceSize;
+
+    /**
+     * The modification time of the original file when it was collected, in
+     * milliseconds since the epoch.
+     */
+    protected long sourceModified;
+
+    /**
+     * The file key (e.g., device and inode) of the original file when it was
+     * collected, if the file system has them.
+     */
+    protected String sourceFileKey;
     
     public PhotoInfo() {
         
     }
     
-    public PhotoInfo(Path origPath, Path finalPath, Directory dir, byte[] md5) {
-        this.origPath = origPath.toString();
+    public PhotoInfo(Path origPath, Path finalPath, Directory dir, ContentHash algorithm, byte[] hash) {
+        this(origPath, dir, algorithm, hash);
         this.finalPath = finalPath.toString();
+    }
+
+    /**
+     * Creates the info for a photo whose contents are already in the library.
+     *
+     * @param origPath the path of the photo
+     * @param aliasOf the path in the library that has the same contents
+     * @param dir the metadata directory for the photo
+     * @param algorithm the algorithm that the contents were hashed with
+     * @param hash the hash of the contents
+     */
+    public PhotoInfo(Path origPath, String aliasOf, Directory dir, ContentHash algorithm, byte[] hash) {
+        this(origPath, dir, algorithm, hash);
+        this.aliasOf = aliasOf;
+    }
+
+    private PhotoInfo(Path origPath, Directory dir, ContentHash algorithm, byte[] hash) {
+        this.origPath = origPath.toString();
+        Map<String, String> dirTags = new LinkedHashMap<>();
         for(Tag tag : dir.getTags()) {
-            tagNames.put(tag.getTagName(), tag.getDescription());
+            dirTags.put(tag.getTagName(), tag.getDescription());
         }
-        directoryType = dir.getClass().toString();
-        this.md5 = md5;
+        setTagNames(dirTags);
+        setDirectoryType(dir.getClass().toString());
+        setHash(algorithm, hash);
     }
 
     public String getOrigPath() {
@@ -59,33 +172,331 @@ public class PhotoInfo {
         this.finalPath = finalPath;
     }
 
-    public String getDirectoryType() {
-        return directoryType;
+    public String getAliasOf() {
+        return aliasOf;
+    }
+
+    public void setAliasOf(String aliasOf) {
+        this.aliasOf = aliasOf;
+    }
+
+    public boolean isAlias() {
+        return aliasOf != null;
+    }
+
+    /**
+     * Gets the path where the contents of this photo can be found in the
+     * library.
+     *
+     * @return the final path of this photo, or the final path of the photo
+     * that it is an alias of.
+     */
+    public String getLibraryPath() {
+        return finalPath != null ? finalPath : aliasOf;
+    }
+
+    /**
+     * Gets the type of metadata directory that the photo's tags came from.
+     *
+     * @param dictionary the dictionary of the store that the photo was read
+     * from
+     * @return the directory type
+     */
+    public String getDirectoryType(TagDictionary dictionary) {
+        if (directoryType != null || directoryTypeId == 0) {
+            return directoryType;
+        }
+        return dictionary.getName(directoryTypeId);
     }
 
     public void setDirectoryType(String directoryType) {
         this.directoryType = directoryType;
+        directoryTypeId = 0;
     }
 
-    public Map<String, String> getTagNames() {
-        return tagNames;
+    /**
+     * Gets the tags for this photo. The tags are decoded the first time that
+     * they're asked for.
+     *
+     * @param dictionary the dictionary of the store that the photo was read
+     * from
+     * @return an unmodifiable map from tag names to values
+     */
+    public Map<String, String> getTagNames(TagDictionary dictionary) {
+        if (tagNames != null) {
+            return Collections.unmodifiableMap(tagNames);
+        }
+        if (decodedTags == null) {
+            decodedTags = Collections.unmodifiableMap(decodeTags(tags, dictionary));
+        }
+        return decodedTags;
     }
 
+    /**
+     * Sets the tags for this photo. They're encoded with the store's
+     * dictionary when the photo is stored.
+     *
+     * @param tagNames a map from tag names to values
+     */
     public void setTagNames(Map<String, String> tagNames) {
-        this.tagNames = tagNames;
+        this.tagNames = tagNames == null ? null : new LinkedHashMap<>(tagNames);
+        tags = null;
+        decodedTags = null;
+    }
+
+    /**
+     * Gets the value of one tag without decoding the rest of them.
+     *
+     * @param dictionary the dictionary of the store that the photo was read
+     * from
+     * @param tagName the name of the tag
+     * @return the value of the tag, or <code>null</code> if this photo doesn't
+     * have it
+     */
+    public String getTagValue(TagDictionary dictionary, String tagName) {
+        if (tagNames != null) {
+            return tagNames.get(tagName);
+        }
+        if (decodedTags != null) {
+            return decodedTags.get(tagName);
+        }
+        if (tags == null) {
+            return null;
+        }
+        int want = dictionary.findId(tagName);
+        if (want == 0) {
+            return null;
+        }
+        int[] pos = {0};
+        while (pos[0] < tags.length) {
+            int id = readVarInt(tags, pos);
+            int len = readVarInt(tags, pos);
+            if (id == want) {
+                return len == 0 ? null : new String(tags, pos[0], len - 1, StandardCharsets.UTF_8);
+            }
+            pos[0] += Math.max(0, len - 1);
+        }
+        return null;
     }
 
+    /**
+     * Moves the tags and directory type into the compact form, with numbers
+     * for the names from a store's dictionary. This is done for new photos
+     * when they're stored, and for photos stored before we had the tag
+     * dictionary when they're rewritten.
+     *
+     * @param dictionary the dictionary of the store that the photo is going
+     * into
+     * @return true if anything changed
+     */
+    public boolean compact(TagDictionary dictionary) {
+        if (tagNames == null && directoryType == null) {
+            return false;
+        }
+        if (tagNames != null) {
+            tags = encodeTags(tagNames, dictionary);
+            decodedTags = Collections.unmodifiableMap(tagNames);
+            tagNames = null;
+        }
+        if (directoryType != null) {
+            directoryTypeId = dictionary.getId(directoryType);
+            directoryType = null;
+        }
+        return true;
+    }
+
+    private static byte[] encodeTags(Map<String, String> tagNames, TagDictionary dictionary) {
+        if (tagNames.isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(tagNames.size() * 16);
+        for (Map.Entry<String, String> e : tagNames.entrySet()) {
+            if (e.getKey() == null) {
+                continue;
+            }
+            writeVarInt(out, dictionary.getId(e.getKey()));
+            if (e.getValue() == null) {
+                writeVarInt(out, 0);
+            } else {
+                byte[] value = e.getValue().getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, value.length + 1);
+                out.write(value, 0, value.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> decodeTags(byte[] tags, TagDictionary dictionary) {
+        Map<String, String> ret = new LinkedHashMap<>();
+        if (tags == null) {
+            return ret;
+        }
+        int[] pos = {0};
+        while (pos[0] < tags.length) {
+            String name = dictionary.getName(readVarInt(tags, pos));
+            int len = readVarInt(tags, pos);
+            String value = null;
+            if (len > 0) {
+                value = new String(tags, pos[0], len - 1, StandardCharsets.UTF_8);
+                pos[0] += len - 1;
+            }
+            ret.put(name, value);
+        }
+        return ret;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarInt(byte[] b, int[] pos) {
+        int v = 0;
+        int shift = 0;
+        while (true) {
+            byte next = b[pos[0]++];
+            v |= (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                return v;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Gets the MD5 of the contents.
+     *
+     * @return the MD5, or <code>null</code> if the contents were hashed with
+     * something else
+     */
     public byte[] getMd5() {
-        return md5;
+        return hashAlgorithm == null ? md5 : null;
     }
 
     public void setMd5(byte[] md5) {
-        this.md5 = md5;
+        setHash(ContentHash.MD5, md5);
+    }
+
+    public byte[] getHash() {
+        return md5;
+    }
+
+    public ContentHash getHashAlgorithm() {
+        return ContentHash.forId(hashAlgorithm);
+    }
+
+    /**
+     * Sets the hash of the contents, along with its key.
+     *
+     * @param algorithm the algorithm that the contents were hashed with
+     * @param hash the hash
+     */
+    public void setHash(ContentHash algorithm, byte[] hash) {
+        this.md5 = hash;
+        hashAlgorithm = algorithm == ContentHash.MD5 ? null : algorithm.getId();
+        contentHash = hash == null ? null : algorithm.key(hash);
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public Long getCaptureTime() {
+        return captureTime;
+    }
+
+    public void setCaptureTime(Long captureTime) {
+        this.captureTime = captureTime;
+    }
+
+    public long getSourceSize() {
+        return sourceSize;
+    }
+
+    public long getSourceModified() {
+        return sourceModified;
+    }
+
+    public String getSourceFileKey() {
+        return sourceFileKey;
+    }
+
+    /**
+     * Records the attributes of the original file.
+     *
+     * @param attrs the attributes of the original file
+     */
+    public void setSource(BasicFileAttributes attrs) {
+        sourceSize = attrs.size();
+        sourceModified = attrs.lastModifiedTime().toMillis();
+        Object fileKey = attrs.fileKey();
+        sourceFileKey = fileKey == null ? null : fileKey.toString();
+    }
+
+    /**
+     * Checks whether the original file has changed since it was collected.
+     * Photos collected before we kept track of the attributes of the original
+     * file are assumed not to have changed.
+     *
+     * @param attrs the current attributes of the original file
+     * @return true if the original file has changed
+     */
+    public boolean sourceChanged(BasicFileAttributes attrs) {
+        if (sourceModified == 0) {
+            return false;
+        }
+        if (attrs.size() != sourceSize || attrs.lastModifiedTime().toMillis() != sourceModified) {
+            return true;
+        }
+        Object fileKey = attrs.fileKey();
+        return sourceFileKey != null && fileKey != null && !sourceFileKey.equals(fileKey.toString());
+    }
+
+    /**
+     * Makes a fingerprint for some contents.
+     *
+     * @param size the size of the contents
+     * @param endsHash the hash of the ends of the contents
+     * @return the fingerprint
+     */
+    public static String makeFingerprint(long size, byte[] endsHash) {
+        return Long.toHexString(size) + ":" + toHex(endsHash);
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
     }
 
     @Override
     public String toString() {
-        return "PhotoInfo{" + "origPath=" + origPath + ", finalPath=" + finalPath + ", directoryType=" + directoryType + ", tagNames=" + tagNames + '}';
+        return "PhotoInfo{" + "origPath=" + origPath + ", finalPath=" + finalPath + ", aliasOf=" + aliasOf + '}';
+    }
+
+    /**
+     * Describes the photo, with its tags.
+     *
+     * @param dictionary the dictionary of the store that the photo was read
+     * from
+     * @return the description
+     */
+    public String toString(TagDictionary dictionary) {
+        return "PhotoInfo{" + "origPath=" + origPath + ", finalPath=" + finalPath + ", aliasOf=" + aliasOf + ", directoryType=" + getDirectoryType(dictionary) + ", tagNames=" + getTagNames(dictionary) + '}';
     }
 
     @Override
@@ -0,0 +1,75 @@
+package com.eelstretching.photo.persist;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * A named list of photos, saved so that it's still there the next time the
+ * DB is opened. The list is kept as the packed, sorted primary keys of the
+ * photos in it.
+ */
+@Entity(version = 1)
+public class SavedList {
+
+    @PrimaryKey
+    protected String name;
+
+    /**
+     * The encoded primary keys, one after another.
+     */
+    protected byte[] keys;
+
+    /**
+     * Where each key starts, with an extra entry for the end of the last key.
+     */
+    protected int[] offsets;
+
+    /**
+     * Whether some of the photos in the list have been deleted since it was
+     * saved.
+     */
+    protected boolean stale;
+
+    /**
+     * When the list was saved, in milliseconds since the epoch.
+     */
+    protected long saved;
+
+    public SavedList() {
+
+    }
+
+    public SavedList(String name, byte[] keys, int[] offsets, boolean stale) {
+        this.name = name;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.stale = stale;
+        saved = System.currentTimeMillis();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getKeys() {
+        return keys;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public long getSaved() {
+        return saved;
+    }
+
+    @Override
+    public String toString() {
+        return "SavedList{" + "name=" + name + ", size=" + (offsets.length - 1) + ", stale=" + stale + '}';
+    }
+
+}
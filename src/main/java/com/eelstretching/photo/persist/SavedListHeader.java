@@ -0,0 +1,70 @@
+package com.eelstretching.photo.persist;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * What we need to know about a saved list without reading its keys: how
+ * many photos are in it and whether it's stale. It's kept next to the
+ * {@link SavedList} with the same name, and the stale flag here is the one
+ * that counts.
+ */
+@Entity(version = 1)
+public class SavedListHeader {
+
+    @PrimaryKey
+    protected String name;
+
+    /**
+     * The number of photos in the list.
+     */
+    protected int size;
+
+    /**
+     * Whether some of the photos in the list have been deleted since it was
+     * saved.
+     */
+    protected boolean stale;
+
+    /**
+     * When the list was saved, in milliseconds since the epoch.
+     */
+    protected long saved;
+
+    public SavedListHeader() {
+
+    }
+
+    public SavedListHeader(SavedList list) {
+        name = list.getName();
+        size = list.getOffsets().length - 1;
+        stale = list.isStale();
+        saved = list.getSaved();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public void setStale(boolean stale) {
+        this.stale = stale;
+    }
+
+    public long getSaved() {
+        return saved;
+    }
+
+    @Override
+    public String toString() {
+        return "SavedListHeader{" + "name=" + name + ", size=" + size + ", stale=" + stale + '}';
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.eelstretching.photo.persist;
+
+import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityStore;
+import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps tag names and directory types to small numbers so that photos don't
+ * have to store the whole name every time. The dictionary is kept in the
+ * store and loaded into memory when the store is opened. New names are added
+ * as they're seen, in their own transaction.
+ *
+ * <p>
+ * The numbers only mean something in the store that they came from, so the
+ * methods of {@link PhotoInfo} that need names are given the dictionary of
+ * the photo's store rather than finding one for themselves.
+ */
+public class TagDictionary {
+
+    private final PrimaryIndex<Integer, TagName> byId;
+
+    private final SecondaryIndex<String, Integer, TagName> byName;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    private volatile String[] names = new String[16];
+
+    public TagDictionary(EntityStore store) {
+        byId = store.getPrimaryIndex(Integer.class, TagName.class);
+        byName = store.getSecondaryIndex(byId, String.class, "name");
+        try (EntityCursor<TagName> entries = byId.entities()) {
+            for (TagName entry : entries) {
+                add(entry);
+            }
+        }
+    }
+
+    /**
+     * Gets the number for a name, adding the name to the dictionary if it
+     * isn't there yet.
+     *
+     * @param name the name
+     * @return the number for the name, which is always greater than 0
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            TagName entry = byName.get(name);
+            if (entry == null) {
+                entry = new TagName(name);
+                byId.put(entry);
+            }
+            add(entry);
+            return entry.getId();
+        }
+    }
+
+    /**
+     * Looks up the number for a name without adding it.
+     *
+     * @param name the name
+     * @return the number for the name, or 0 if it isn't in the dictionary
+     */
+    public int findId(String name) {
+        Integer id = ids.get(name);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * Gets the name for a number.
+     *
+     * @param id the number
+     * @return the name, or <code>null</code> if there's no such number
+     */
+    public String getName(int id) {
+        String[] current = names;
+        if (id > 0 && id < current.length && current[id] != null) {
+            return current[id];
+        }
+        synchronized (this) {
+            current = names;
+            if (id > 0 && id < current.length && current[id] != null) {
+                return current[id];
+            }
+            TagName entry = byId.get(id);
+            if (entry == null) {
+                return null;
+            }
+            add(entry);
+            return entry.getName();
+        }
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Gets all of the names in the dictionary.
+     *
+     * @return the names, in order of their numbers
+     */
+    public List<String> getNames() {
+        List<String> ret = new ArrayList<>();
+        for (String name : names) {
+            if (name != null) {
+                ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    private synchronized void add(TagName entry) {
+        String[] current = names;
+        if (entry.getId() >= current.length) {
+            String[] grown = new String[Math.max(entry.getId() + 1, current.length * 2)];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        current[entry.getId()] = entry.getName();
+        names = current;
+        ids.put(entry.getName(), entry.getId());
+    }
+}
@@ -0,0 +1,86 @@
+package com.eelstretching.photo.persist;
+
+import com.sleepycat.persist.model.KeyField;
+import com.sleepycat.persist.model.Persistent;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * The key for a tag posting: a tag name, a normalized tag value, and the
+ * original path of a photo that has that value for the tag. Keys sort by tag
+ * name, then value, then path, so all of the photos with a given value, or
+ * with values that start with a given prefix, are next to each other.
+ */
+@Persistent(version = 1)
+public class TagKey {
+
+    @KeyField(1)
+    protected String tagName;
+
+    @KeyField(2)
+    protected String value;
+
+    @KeyField(3)
+    protected String origPath;
+
+    public TagKey() {
+
+    }
+
+    public TagKey(String tagName, String value, String origPath) {
+        this.tagName = tagName;
+        this.value = value;
+        this.origPath = origPath;
+    }
+
+    public String getTagName() {
+        return tagName;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getOrigPath() {
+        return origPath;
+    }
+
+    /**
+     * Normalizes a tag value for the index. Tag values are matched without
+     * regard to case, so values are lower-cased.
+     *
+     * @param value the value to normalize
+     * @return the normalized value
+     */
+    public static String normalize(String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String toString() {
+        return "TagKey{" + "tagName=" + tagName + ", value=" + value + ", origPath=" + origPath + '}';
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tagName, value, origPath);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final TagKey other = (TagKey) obj;
+        return Objects.equals(this.tagName, other.tagName)
+                && Objects.equals(this.value, other.value)
+                && Objects.equals(this.origPath, other.origPath);
+    }
+
+}
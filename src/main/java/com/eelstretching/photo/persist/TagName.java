@@ -0,0 +1,42 @@
+package com.eelstretching.photo.persist;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
+
+/**
+ * An entry in the dictionary of names that photos refer to by number: the
+ * names of tags and the types of metadata directories.
+ */
+@Entity(version = 1)
+public class TagName {
+
+    @PrimaryKey(sequence = "TagName")
+    protected int id;
+
+    @SecondaryKey(relate = Relationship.ONE_TO_ONE)
+    protected String name;
+
+    public TagName() {
+
+    }
+
+    public TagName(String name) {
+        this.name = name;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return "TagName{" + "id=" + id + ", name=" + name + '}';
+    }
+
+}
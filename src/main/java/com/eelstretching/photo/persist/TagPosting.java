@@ -0,0 +1,33 @@
+package com.eelstretching.photo.persist;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+/**
+ * An entry in the inverted index from tag values to photos. Everything that
+ * we need is in the key.
+ */
+@Entity(version = 1)
+public class TagPosting {
+
+    @PrimaryKey
+    protected TagKey key;
+
+    public TagPosting() {
+
+    }
+
+    public TagPosting(TagKey key) {
+        this.key = key;
+    }
+
+    public TagKey getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "TagPosting{" + "key=" + key + '}';
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.eelstretching.photo;
+
+import com.eelstretching.photo.persist.PhotoInfo;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the digest against known answers from Guava's
+ * <code>Hashing.murmur3_128()</code>, however the input is fed to it.
+ */
+public class Murmur3DigestTest {
+
+    /**
+     * Lengths of generated inputs and their hashes. The lengths go either side
+     * of the 16 byte block size, so that every tail length gets used.
+     */
+    private static final Object[][] GENERATED = {
+        {15, "17ab8267b5f475375e412bb1809d296c"},
+        {16, "14da89f6eb796b468a8505b8028b548c"},
+        {17, "24e59d30842f32eb1b4828271fa02a08"},
+        {31, "69059632da93db491e6cdc33601eb290"},
+        {32, "326112a8ce3886422e5d152a511dcaf0"},
+        {33, "ebcd309230c70bfa642153960cc72137"},
+        {1000, "45c99d896b9dfe1729ce34cea6aaa7d3"}
+    };
+
+    private static byte[] generate(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) (i * 31 + 7);
+        }
+        return b;
+    }
+
+    private static String hex(MessageDigest md) {
+        return PhotoInfo.toHex(md.digest());
+    }
+
+    @Test
+    public void strings() {
+        MessageDigest md = new Murmur3Digest();
+        assertEquals("00000000000000000000000000000000", hex(md));
+        md.update("a".getBytes(StandardCharsets.UTF_8));
+        assertEquals("897859f6655555855a890e51483ab5e6", hex(md));
+        md.update("abc".getBytes(StandardCharsets.UTF_8));
+        assertEquals("6778ad3f3f3f96b4522dca264174a23b", hex(md));
+        md.update("The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8));
+        assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", hex(md));
+    }
+
+    @Test
+    public void wholeArrays() {
+        MessageDigest md = new Murmur3Digest();
+        for (Object[] g : GENERATED) {
+            md.update(generate((Integer) g[0]));
+            assertEquals("length " + g[0], g[1], hex(md));
+        }
+    }
+
+    @Test
+    public void byteAtATime() {
+        MessageDigest md = new Murmur3Digest();
+        for (Object[] g : GENERATED) {
+            for (byte b : generate((Integer) g[0])) {
+                md.update(b);
+            }
+            assertEquals("length " + g[0], g[1], hex(md));
+        }
+    }
+
+    @Test
+    public void mixedUpdates() {
+        MessageDigest md = new Murmur3Digest();
+        for (Object[] g : GENERATED) {
+            byte[] b = generate((Integer) g[0]);
+            //
+            // Single bytes, short arrays, heap buffers and direct buffers, in
+            // pieces that don't line up with the blocks.
+            int pos = 0;
+            int step = 0;
+            while (pos < b.length) {
+                int len = Math.min(b.length - pos, 1 + (step * 7) % 23);
+                switch (step % 4) {
+                    case 0:
+                        md.update(b[pos]);
+                        len = 1;
+                        break;
+                    case 1:
+                        md.update(b, pos, len);
+                        break;
+                    case 2:
+                        md.update(ByteBuffer.wrap(b, pos, len));
+                        break;
+                    default:
+                        ByteBuffer direct = ByteBuffer.allocateDirect(len);
+                        direct.put(b, pos, len).flip();
+                        md.update(direct);
+                }
+                pos += len;
+                step++;
+            }
+            assertEquals("length " + g[0], g[1], hex(md));
+        }
+    }
+
+    @Test
+    public void reset() {
+        MessageDigest md = new Murmur3Digest();
+        md.update(generate(40));
+        md.reset();
+        md.update(generate(17));
+        assertEquals("24e59d30842f32eb1b4828271fa02a08", hex(md));
+    }
+}
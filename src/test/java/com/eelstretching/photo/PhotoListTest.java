@@ -0,0 +1,143 @@
+package com.eelstretching.photo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the merges that make new lists out of other lists.
+ */
+public class PhotoListTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PhotoDB photoDB;
+
+    @Before
+    public void open() throws Exception {
+        File dbDir = folder.newFolder("photo.db");
+        photoDB = new PhotoDB(folder.getRoot().toPath(), dbDir.toPath());
+    }
+
+    @After
+    public void close() throws Exception {
+        photoDB.close();
+    }
+
+    private PhotoList list(String... origPaths) {
+        PhotoList.Builder builder = new PhotoList.Builder(photoDB);
+        for (String origPath : origPaths) {
+            builder.add(origPath);
+        }
+        return builder.build();
+    }
+
+    private static List<String> keys(PhotoList list) {
+        List<String> keys = new ArrayList<>();
+        for (String key : list.keys()) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    @Test
+    public void builderSortsAndDropsDuplicates() {
+        PhotoList list = list("/c", "/a", "/b", "/a", "/c");
+        assertEquals(Arrays.asList("/a", "/b", "/c"), keys(list));
+        assertTrue(list.contains("/b"));
+        assertFalse(list.contains("/d"));
+    }
+
+    @Test
+    public void union() {
+        PhotoList l1 = list("/a", "/c", "/e");
+        PhotoList l2 = list("/b", "/c", "/f");
+        PhotoList l3 = list("/a", "/d", "/f", "/g");
+        PhotoList union = PhotoList.union(photoDB, Arrays.asList(l1, l2, l3));
+        assertEquals(Arrays.asList("/a", "/b", "/c", "/d", "/e", "/f", "/g"), keys(union));
+    }
+
+    @Test
+    public void unionWithEmptyLists() {
+        PhotoList l1 = list("/a", "/b");
+        PhotoList union = PhotoList.union(photoDB, Arrays.asList(list(), l1, list()));
+        assertEquals(Arrays.asList("/a", "/b"), keys(union));
+        assertTrue(PhotoList.union(photoDB, Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void intersect() {
+        PhotoList l1 = list("/a", "/b", "/c", "/d", "/e");
+        PhotoList l2 = list("/b", "/c", "/e", "/f");
+        PhotoList l3 = list("/c", "/e");
+        PhotoList intersect = PhotoList.intersect(photoDB, Arrays.asList(l1, l2, l3));
+        assertEquals(Arrays.asList("/c", "/e"), keys(intersect));
+    }
+
+    @Test
+    public void intersectDisjoint() {
+        PhotoList l1 = list("/a", "/c");
+        PhotoList l2 = list("/b", "/d");
+        assertTrue(PhotoList.intersect(photoDB, Arrays.asList(l1, l2)).isEmpty());
+        assertTrue(PhotoList.intersect(photoDB, Arrays.asList(l1, list())).isEmpty());
+    }
+
+    @Test
+    public void intersectOne() {
+        PhotoList l1 = list("/a", "/b");
+        assertEquals(keys(l1), keys(PhotoList.intersect(photoDB, Collections.singletonList(l1))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void intersectNothing() {
+        PhotoList.intersect(photoDB, Collections.emptyList());
+    }
+
+    @Test
+    public void difference() {
+        PhotoList from = list("/a", "/b", "/c", "/d", "/e", "/f");
+        PhotoList l1 = list("/b", "/e", "/z");
+        PhotoList l2 = list("/0", "/a", "/e");
+        PhotoList difference = PhotoList.difference(photoDB, from, Arrays.asList(l1, l2));
+        assertEquals(Arrays.asList("/c", "/d", "/f"), keys(difference));
+    }
+
+    @Test
+    public void differenceOfNothing() {
+        PhotoList from = list("/a", "/b");
+        assertEquals(keys(from), keys(PhotoList.difference(photoDB, from, Collections.emptyList())));
+        assertTrue(PhotoList.difference(photoDB, list(), Collections.singletonList(from)).isEmpty());
+    }
+
+    @Test
+    public void overlaps() {
+        PhotoList l1 = list("/a", "/c", "/e");
+        assertTrue(PhotoList.overlaps(l1, list("/b", "/e")));
+        assertTrue(PhotoList.overlaps(list("/a"), l1));
+        assertFalse(PhotoList.overlaps(l1, list("/b", "/d", "/f")));
+        assertFalse(PhotoList.overlaps(l1, list()));
+    }
+
+    @Test
+    public void keysThatArePrefixes() {
+        //
+        // A key sorts before any longer key that it's a prefix of.
+        PhotoList l1 = list("/a", "/ab", "/abc");
+        PhotoList l2 = list("/ab", "/abcd");
+        assertEquals(Arrays.asList("/a", "/ab", "/abc", "/abcd"), keys(PhotoList.union(photoDB, Arrays.asList(l1, l2))));
+        assertEquals(Arrays.asList("/ab"), keys(PhotoList.intersect(photoDB, Arrays.asList(l1, l2))));
+        assertEquals(Arrays.asList("/a", "/abc"), keys(PhotoList.difference(photoDB, l1, Collections.singletonList(l2))));
+    }
+}